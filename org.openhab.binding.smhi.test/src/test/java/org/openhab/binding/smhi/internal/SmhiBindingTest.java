@@ -0,0 +1,162 @@
+package org.openhab.binding.smhi.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.management.ManagementFactory;
+import java.util.Dictionary;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.openhab.core.events.EventPublisher;
+import org.openhab.core.library.items.NumberItem;
+import org.openhab.core.library.types.DecimalType;
+import org.openhab.core.types.Command;
+import org.openhab.core.types.State;
+import org.osgi.service.cm.ConfigurationException;
+
+import com.sun.management.ThreadMXBean;
+
+
+/**
+ * Tests the refresh cycles of the SMHI binding. Requests are answered by a stub, nothing
+ * is sent to SMHI.
+ *
+ * @author agent
+ */
+public class SmhiBindingTest {
+
+	// Fewer points than the pipeline queue holds, so the warm-up schedules all of them
+	private static final int POINT_COUNT = 50;
+	private static final int ITEM_COUNT = 1000;
+
+	// Cycles measured per run
+	private static final int CYCLES = 1000;
+
+	// Point forecast answered for every point, a single step far ahead matches every item offset
+	private static final String POINT_JSON = "{\"approvedTime\":\"2016-01-18T16:25:14Z\","
+			+ "\"referenceTime\":\"2016-01-18T14:00:00Z\","
+			+ "\"geometry\":{\"type\":\"Point\",\"coordinates\":[[16.0,58.0]]},"
+			+ "\"timeSeries\":[{\"validTime\":\"2100-01-01T00:00:00Z\",\"parameters\":["
+			+ "{\"name\":\"t\",\"levelType\":\"hl\",\"level\":2,\"unit\":\"Cel\",\"values\":[-1.0]}]}]}";
+
+	private SmhiBinding binding;
+
+	// Last state posted per item
+	private Map<String, State> updates = new ConcurrentHashMap<String, State>();
+
+	@Before
+	public void setUp() throws Exception {
+		SmhiGenericBindingProvider provider = new SmhiGenericBindingProvider();
+		for (int i = 0; i < ITEM_COUNT; i++) {
+			double latitude = 58 + (i % POINT_COUNT) / 100.0;
+			provider.processBindingConfiguration("smhi.items", new NumberItem("Smhi" + i),
+					latitude + ":16.0:temperature+" + (i / POINT_COUNT));
+		}
+		binding = new SmhiBinding() {
+			@Override
+			String download(SmhiLatencyTracker tracker, String url) {
+				return url.contains("/geotype/point/") ? POINT_JSON : null;
+			}
+		};
+		binding.setEventPublisher(new EventPublisher() {
+			@Override
+			public void sendCommand(String itemName, Command command) {
+			}
+
+			@Override
+			public void postCommand(String itemName, Command command) {
+			}
+
+			@Override
+			public void postUpdate(String itemName, State newState) {
+				updates.put(itemName, newState);
+			}
+		});
+		binding.addBindingProvider(provider);
+		binding.updated(config("refresh", "3600000"));
+	}
+
+	@After
+	public void tearDown() {
+		binding.deactivate();
+	}
+
+	@Test
+	public void testCycleWithoutDueItemsAllocatesNothingPerItem() {
+		// The warm-up schedules every item, none is due again within the hour
+		binding.activate();
+		binding.deactivate();
+
+		ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long threadId = Thread.currentThread().getId();
+		for (int i = 0; i < CYCLES; i++) {
+			binding.execute();
+		}
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for (int i = 0; i < CYCLES; i++) {
+			binding.execute();
+		}
+		long perCycle = (threads.getThreadAllocatedBytes(threadId) - before) / CYCLES;
+
+		// A single allocation per item would add at least 16 bytes per item
+		assertTrue("Refresh cycle allocated " + perCycle + " bytes for " + ITEM_COUNT + " items", perCycle < ITEM_COUNT);
+	}
+
+	@Test
+	public void testRefreshContinuesAfterIntervalChange() throws Exception {
+		binding.activate();
+		// Start a new pipeline, so no point is left in progress from the warm-up
+		binding.deactivate();
+		binding.activate();
+		long scheduled = binding.getLastUpdate("Smhi0");
+		assertTrue("Item not scheduled by the warm-up", scheduled > 0);
+		binding.execute();
+		assertEquals("Item refreshed before it was due", scheduled, binding.getLastUpdate("Smhi0"));
+
+		binding.updated(config("refresh", "50"));
+		assertTrue(binding.isProperlyConfigured());
+		assertTrue("Refresh thread sleeps longer than the new interval", binding.getRefreshInterval() <= 50);
+		Thread.sleep(100);
+		binding.execute();
+		assertTrue("Item not refreshed with the new interval", binding.getLastUpdate("Smhi0") > scheduled);
+	}
+
+	@Test
+	public void testRejectsRefreshOfZero() throws Exception {
+		try {
+			binding.updated(config("refresh", "0"));
+			fail("Refresh of 0 accepted");
+		} catch (ConfigurationException e) {
+			// expected
+		}
+		binding.updated(config("refresh", " 50 "));
+		assertTrue("Padded refresh not applied", binding.getRefreshInterval() <= 50);
+	}
+
+		@Test
+	public void testPublishesMinusOneAsValue() throws Exception {
+		binding.updated(config("refresh", "3600000", "ratelimit.rate", "1000", "ratelimit.burst", "100"));
+		binding.activate();
+		long end = System.currentTimeMillis() + 10000;
+		while (updates.size() < ITEM_COUNT && System.currentTimeMillis() < end) {
+			Thread.sleep(10);
+		}
+		assertEquals("Items not published", ITEM_COUNT, updates.size());
+		// A temperature of -1 is a value, not a missing one
+		assertEquals(-1.0, ((DecimalType) updates.get("Smhi0")).doubleValue(), 0);
+	}
+
+	private static Dictionary<String, ?> config(String... keysAndValues) {
+		Hashtable<String, String> properties = new Hashtable<String, String>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			properties.put(keysAndValues[i], keysAndValues[i + 1]);
+		}
+		return properties;
+	}
+}
@@ -0,0 +1,47 @@
+package org.openhab.binding.smhi.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Tests the derived SMHI parameters.
+ *
+ * @author agent
+ */
+public class SmhiDerivedParametersTest {
+
+	private static final double DELTA = 1e-9;
+
+	@Test
+	public void testWindComponentsOfEasterlyWind() {
+		double[] values = new double[SmhiDerivedParameters.COUNT];
+		SmhiDerivedParameters.compute(5, 80, 1, 90, values);
+
+		// Wind from the east blows towards west, -1 is a value and not a missing one
+		assertEquals(-1.0, values[SmhiDerivedParameters.WIND_U], DELTA);
+		assertEquals(0.0, values[SmhiDerivedParameters.WIND_V], DELTA);
+	}
+
+	@Test
+	public void testWindComponentsOfNortherlyWind() {
+		double[] values = new double[SmhiDerivedParameters.COUNT];
+		SmhiDerivedParameters.compute(5, 80, 1, 0, values);
+
+		assertEquals(0.0, values[SmhiDerivedParameters.WIND_U], DELTA);
+		assertEquals(-1.0, values[SmhiDerivedParameters.WIND_V], DELTA);
+	}
+
+	@Test
+	public void testMissingInputOnlyAffectsDependentValues() {
+		double[] values = new double[SmhiDerivedParameters.COUNT];
+		SmhiDerivedParameters.compute(5, Double.NaN, 1, 90, values);
+
+		assertTrue(Double.isNaN(values[SmhiDerivedParameters.DEW_POINT]));
+		assertFalse(Double.isNaN(values[SmhiDerivedParameters.WIND_U]));
+		assertFalse(Double.isNaN(values[SmhiDerivedParameters.WIND_V]));
+	}
+}
@@ -11,5 +11,6 @@ public interface SmhiBindingProvider extends BindingProvider {
 	public double getLongitude(String itemName);
 	public double getLatitude(String itemName);
 	public String getParameter(String itemName);
+	public int getOffset(String itemName);
 
 }
@@ -16,10 +16,14 @@ public final class SmhiActivator implements BundleActivator {
 
 	private static Logger logger = LoggerFactory.getLogger(SmhiActivator.class); 
 	
+	// System.nanoTime() when the bundle was started
+	private static volatile long startTime = System.nanoTime();
+	
 	/**
 	 * Called whenever the OSGi framework starts our bundle
 	 */
 	public void start(BundleContext bc) throws Exception {
+		startTime = System.nanoTime();
 		logger.debug("SMHI binding has been started.");
 	}
 
@@ -30,4 +34,11 @@ public final class SmhiActivator implements BundleActivator {
 		logger.debug("SMHI binding has been stopped.");
 	}
 	
+	/**
+	 * @return the {@link System#nanoTime()} at which the bundle was started.
+	 */
+	public static long getStartTime() {
+		return startTime;
+	}
+	
 }
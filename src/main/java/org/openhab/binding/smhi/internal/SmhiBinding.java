@@ -1,24 +1,46 @@
 package org.openhab.binding.smhi.internal;
 
+import java.io.File;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.Dictionary;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.lang.StringUtils;
+import org.codehaus.jackson.JsonParser;
+import org.codehaus.jackson.JsonToken;
 import org.codehaus.jackson.annotate.JsonIgnoreProperties;
 import org.codehaus.jackson.annotate.JsonProperty;
 import org.codehaus.jackson.map.JsonMappingException;
 import org.codehaus.jackson.map.ObjectMapper;
 import org.openhab.binding.smhi.SmhiBindingProvider;
+import org.openhab.binding.smhi.internal.SmhiGridInterpolator.Location;
+import org.openhab.binding.smhi.internal.SmhiGridStore.GridRun;
 import org.openhab.core.binding.AbstractActiveBinding;
 import org.openhab.core.binding.BindingProvider;
 import org.openhab.core.library.types.DecimalType;
-import org.openhab.io.net.http.HttpUtil;
 import org.osgi.service.cm.ConfigurationException;
 import org.osgi.service.cm.ManagedService;
 import org.slf4j.Logger;
@@ -38,24 +60,43 @@ public class SmhiBinding extends AbstractActiveBinding<SmhiBindingProvider> impl
 	private static final Logger logger = 
 			LoggerFactory.getLogger(SmhiBinding.class);
 
-	// Keeps track of the last time item was updated. 
-	private Map<String, Long> lastUpdateMap = new HashMap<String, Long>();
-	
-	// Keeps track of the last time item was updated. 
-	private Map<Geometry, WeatherDataV2> actualWeatherDataMap = new HashMap<Geometry, WeatherDataV2>();
+	// State of every bound item, including the last time it was updated. Rebuilt on binding
+	// and configuration changes, so refresh cycles only read it.
+	private volatile ItemState[] itemStates = new ItemState[0];
 	
 	// The server used to store the SMHI weather data. */
 	protected static final String URL = "http://opendata-download-metfcst.smhi.se/api/category/pmp2g/version/2/geotype/point/lon/%s/lat/%s/data.json";
 	
+	// Time of the latest approved forecast run
+	protected static final String APPROVED_TIME_URL = "http://opendata-download-metfcst.smhi.se/api/category/pmp2g/version/2/approvedtime.json";
+	
 	// JSON mapper
 	private static final ObjectMapper JSON = new ObjectMapper();
 	
 	// Update with 10 minutes interval.
-	private long refreshInterval = 600000L;
+	private volatile long refreshInterval = 600000L;
 	
-	// Timeout for weather data requests.
+	// Longest time the refresh thread sleeps between checks for due items. Items are due by
+	// their own refresh time, so a new refresh interval applies without restarting the thread.
+	private static final long REFRESH_TICK = 10000L;
+	
+	// Timeout for weather data requests, until enough responses are seen to adapt it.
 	private static final int SMHI_TIMEOUT = 5000;
 	
+	// Lower bound of the adaptive timeout
+	private static final int SMHI_MIN_TIMEOUT = 1000;
+	
+	// Response times of the SMHI endpoints
+	private SmhiLatencyTracker pointLatency = new SmhiLatencyTracker("point", SMHI_MIN_TIMEOUT, SMHI_TIMEOUT);
+	private SmhiLatencyTracker approvedTimeLatency = new SmhiLatencyTracker("approved time", SMHI_MIN_TIMEOUT, SMHI_TIMEOUT);
+	private SmhiLatencyTracker gridLatency = new SmhiLatencyTracker("grid", SMHI_MIN_TIMEOUT, SMHI_TIMEOUT);
+	
+	// Config percentile of the response time after which a hedged request is sent
+	private static String CONFIG_KEY_HEDGE_PERCENTILE = "hedge.percentile";
+	
+	// Percentile of the response time after which a hedged request is sent, 0 disables hedging
+	private volatile double hedgePercentile = 0;
+	
 	// Are optionally read from openhab.cfg
 	private double homeLatitude = 0;
 	private double homeLongitude = 0;
@@ -69,6 +110,144 @@ public class SmhiBinding extends AbstractActiveBinding<SmhiBindingProvider> impl
 	//Config refresh interval
 	private static String CONFIG_KEY_REFRESH = "refresh";
 	
+	// Config sustained request rate towards SMHI, requests per second
+	private static String CONFIG_KEY_RATELIMIT_RATE = "ratelimit.rate";
+	
+	// Config number of requests that may be sent back to back
+	private static String CONFIG_KEY_RATELIMIT_BURST = "ratelimit.burst";
+	
+	// Config directory of the forecast cache shared with other openHAB instances
+	private static String CONFIG_KEY_CACHE_DIRECTORY = "cache.directory";
+	
+	// Config directory of the memory-mapped grid field store
+	private static String CONFIG_KEY_GRID_DIRECTORY = "grid.directory";
+	
+	// Config directory, parameters and runs kept per point of the forecast series export
+	private static String CONFIG_KEY_EXPORT_DIRECTORY = "export.directory";
+	private static String CONFIG_KEY_EXPORT_PARAMETERS = "export.parameters";
+	private static String CONFIG_KEY_EXPORT_RUNS = "export.runs";
+	
+	// Default number of exported runs kept per point, a day of runs
+	private static final int DEFAULT_EXPORT_RUNS = 24;
+	
+	// Optional export of the whole forecast series of each new run
+	private volatile SmhiForecastExporter exporter;
+	
+	// Optional off-heap store of whole-grid forecast fields
+	private volatile SmhiGridStore gridStore;
+	
+	// Downloads grid runs into the grid store
+	private volatile SmhiGridLoader gridLoader;
+	
+	// Default request rate and burst towards SMHI
+	private static final double DEFAULT_RATELIMIT_RATE = 2.0;
+	private static final int DEFAULT_RATELIMIT_BURST = 5;
+	
+	// Limits the rate of all requests sent to SMHI
+	private SmhiRateLimiter rateLimiter = new SmhiRateLimiter(DEFAULT_RATELIMIT_RATE, DEFAULT_RATELIMIT_BURST);
+	
+	// Points that have been fetched at least once, these yield to new points in the rate limiter
+	private Set<Geometry> fetchedPoints = Collections.newSetFromMap(new ConcurrentHashMap<Geometry, Boolean>());
+	
+	// Optional forecast cache shared with other openHAB instances on this host
+	private volatile SmhiSharedCache sharedCache;
+	
+	// Shared cache key and maximum age of the approved run
+	private static final String APPROVED_TIME_KEY = "approvedtime";
+	private static final long APPROVED_TIME_MAX_AGE = 60000L;
+	
+	// Latest approved run and when it was fetched, only refreshed by the background run check
+	private volatile SmhiDataListV2 approvedRun;
+	private volatile long approvedRunFetched;
+	
+	// Set while a background check for a new run is running
+	private final AtomicBoolean runCheckInFlight = new AtomicBoolean();
+	
+	// Time the last check for a new run was started
+	private volatile long lastRunCheck;
+	
+	// Milliseconds from bundle start, or from a later activation, to the first published value
+	private final AtomicLong firstPublishLatency = new AtomicLong(-1);
+	
+	// System.nanoTime() the first publish latency is measured from, 0 until the first activation
+	private volatile long publishLatencyStart;
+	
+	// Maximum number of concurrent point fetches, and capacity of each pipeline queue
+	private static final int FETCH_CONCURRENCY = 4;
+	private static final int PIPELINE_QUEUE_CAPACITY = 64;
+	
+	// Fetches, decodes and publishes points off the refresh thread
+	private volatile SmhiPipeline<PointJob, String, double[]> pipeline;
+	
+	// Points queued or in progress in the pipeline
+	private Set<Geometry> scheduledPoints = Collections.newSetFromMap(new ConcurrentHashMap<Geometry, Boolean>());
+	
+	// Point queries currently in flight
+	private SmhiSingleFlight<Geometry, String> pointFlights = new SmhiSingleFlight<Geometry, String>();
+	
+	// Config number of forecast runs kept per point
+	private static String CONFIG_KEY_HISTORY_RUNS = "history.runs";
+	
+	// Default number of forecast runs kept per point
+	private static final int DEFAULT_HISTORY_RUNS = 4;
+	
+	// Period of tendency parameters
+	private static final long TENDENCY_PERIOD = TimeUnit.HOURS.toMillis(3);
+	
+	// Time between two forecast runs approved by SMHI
+	private static final long RUN_INTERVAL = TimeUnit.HOURS.toMillis(1);
+	
+	// Longest time from the reference time of a run until SMHI approves it
+	private static final long RUN_APPROVAL_DELAY = TimeUnit.HOURS.toMillis(3);
+	
+	// Shortest time between two time steps, pmp2g steps are hourly at first and further apart later
+	private static final long STEP_INTERVAL = TimeUnit.HOURS.toMillis(1);
+	
+	// Number of forecast runs kept per point
+	private volatile int historyRuns = DEFAULT_HISTORY_RUNS;
+	
+	// Config time budget of a refresh cycle in milliseconds
+	private static String CONFIG_KEY_CYCLE_BUDGET = "cycle.budget";
+	
+	// Time budget of a refresh cycle, 0 for no limit
+	private volatile long cycleBudget = 0;
+	
+	// Points carried over to a later cycle, and points due again before their last refresh finished
+	private AtomicInteger carriedOverCount = new AtomicInteger();
+	private AtomicInteger overrunCount = new AtomicInteger();
+	
+	// Orders jobs by the oldest last update of their items
+	private static final Comparator<PointJob> OLDEST_FIRST = new Comparator<PointJob>() {
+		@Override
+		public int compare(PointJob job1, PointJob job2) {
+			return job1.oldestUpdate < job2.oldestUpdate ? -1 : (job1.oldestUpdate == job2.oldestUpdate ? 0 : 1);
+		}
+	};
+	
+	// Config forecast horizon in hours
+	private static String CONFIG_KEY_HORIZON = "horizon";
+	
+	// Configured forecast horizon
+	private volatile long configuredHorizon = 0;
+	
+	// Forecast horizon, the configured one or the largest offset of the bound items
+	private volatile long horizon = 0;
+	
+	// Config budget of the forecast run histories in bytes and in points
+	private static String CONFIG_KEY_HISTORY_MAX_BYTES = "history.maxbytes";
+	private static String CONFIG_KEY_HISTORY_MAX_POINTS = "history.maxpoints";
+	
+	// Default budget of the forecast run histories, at least 700 points with 4 runs each
+	private static final long DEFAULT_HISTORY_MAX_BYTES = 16 * 1024 * 1024;
+	private static final int DEFAULT_HISTORY_MAX_POINTS = 0;
+	
+	// The last forecast runs of each point
+	private SmhiForecastCache<Geometry> forecastCache = 
+			new SmhiForecastCache<Geometry>(DEFAULT_HISTORY_MAX_BYTES, DEFAULT_HISTORY_MAX_POINTS);
+	
+	// Interpolation weights of each position in the current grid run
+	private Map<Geometry, Location> gridLocationMap = new ConcurrentHashMap<Geometry, Location>();
+	
 	@Override
 	protected String getName() {
 		return "SMHI Refresh Service";
@@ -76,10 +255,31 @@ public class SmhiBinding extends AbstractActiveBinding<SmhiBindingProvider> impl
 	
 	@Override
 	protected long getRefreshInterval() {
-		return refreshInterval;
+		return Math.min(refreshInterval, REFRESH_TICK);
+	}
+	
+	/**
+	 * @param deadline time after which the query gives up waiting for the rate limiter, 0 for no limit
+	 */
+	private String executeQuery(final Geometry point, final double longitude, final double latitude,
+			final long deadline) throws Exception {
+		try {
+			// Attach to a query of the same point that is already in flight
+			return pointFlights.execute(point, new Callable<String>() {
+				@Override
+				public String call() throws Exception {
+					return queryPoint(point, longitude, latitude, deadline);
+				}
+			});
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
 	}
 	
-	private SmhiDataListV2 executeQuery(double longitude, double latitude) {
+	private String queryPoint(Geometry point, double longitude, double latitude, long deadline) throws Exception {
 		// SMHI API only supports 6 digits in API call
 		DecimalFormat df = new DecimalFormat("##.######");
 		DecimalFormatSymbols custom=new DecimalFormatSymbols();
@@ -87,27 +287,225 @@ public class SmhiBinding extends AbstractActiveBinding<SmhiBindingProvider> impl
 		df.setDecimalFormatSymbols(custom);
 		String apiRequest = String.format(URL, df.format(longitude), df.format(latitude));
 		
-		String apiResponseJson = null;
-		SmhiDataListV2 dataList = null;
-		
+		// Point forecasts only change with a new run, version shared cache entries by approvedTime
+		SmhiDataListV2 approved = getApprovedRun();
+		String apiResponseJson = fetch(point, !fetchedPoints.contains(point), pointLatency, apiRequest,
+				"point-" + df.format(longitude) + "_" + df.format(latitude),
+				approved != null ? approved.getApprovedTime().getTime() : 0, deadline);
+		fetchedPoints.add(point);
+		return apiResponseJson;
+	}
+	
+	/**
+	 * Decodes a point forecast, reading time steps only up to the first step at or after the horizon.
+	 * The rest of the response is not parsed.
+	 */
+	private static SmhiDataListV2 decodePoint(String apiResponseJson, long horizonTime) throws IOException {
+		SmhiDataListV2 dataList = new SmhiDataListV2();
+		JsonParser parser = JSON.getJsonFactory().createJsonParser(apiResponseJson);
 		try {
-			apiResponseJson = HttpUtil.executeUrl("GET", apiRequest, null, null, "application/json", SMHI_TIMEOUT);
-			logger.debug("Quering SMHI API: " + apiRequest);
-			dataList = JSON.readValue(apiResponseJson, SmhiDataListV2.class);
-		} catch (final Exception e) {
-			if (e instanceof JsonMappingException) {
-				logger.error("Could not parse JSON from URL '"
-						+ URL + "' content='" + apiRequest + "' json='" + apiResponseJson + "' Exception trace:'" +
-						e.toString());
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				throw new IOException("Could not parse JSON from URL '"
+						+ URL + "' json='" + apiResponseJson + "'");
 			}
-			else {
-				logger.error("'Exception trace:'" + e.toString());
+			boolean horizonReached = false;
+			while (!horizonReached && parser.nextToken() == JsonToken.FIELD_NAME) {
+				String field = parser.getCurrentName();
+				parser.nextToken();
+				switch (field) {
+				case "approvedTime":
+					dataList.approvedTime = JSON.readValue(parser, Date.class);
+					break;
+				case "referenceTime":
+					dataList.referenceTime = JSON.readValue(parser, Date.class);
+					break;
+				case "geometry":
+					dataList.geometry = JSON.readValue(parser, Geometry.class);
+					break;
+				case "timeSeries":
+					dataList.timeSeries = readTimeSeries(parser, horizonTime);
+					if (parser.getCurrentToken() != JsonToken.END_ARRAY) {
+						// Stopped at the horizon, skip the remaining steps only if fields are left to read
+						horizonReached = dataList.approvedTime != null;
+						while (!horizonReached && parser.nextToken() != JsonToken.END_ARRAY) {
+							parser.skipChildren();
+						}
+					}
+					break;
+				default:
+					parser.skipChildren();
+				}
 			}
+		} catch (JsonMappingException e) {
+			throw new IOException("Could not parse JSON from URL '"
+					+ URL + "' json='" + apiResponseJson + "'", e);
+		} finally {
+			parser.close();
+		}
+		if (dataList.getTimeSeries() == null || dataList.getTimeSeries().isEmpty()) {
+			throw new IOException("No time series in response from SMHI API");
+		}
+		
+		for (WeatherDataV2 weatherData : dataList.getTimeSeries()) {
+			weatherData.processData();
 		}
 		return dataList;
 	}
+	
+	/**
+	 * Reads time steps up to and including the first one valid at or after the horizon.
+	 * 
+	 * @return the steps read, the parser is left at the end of the last one.
+	 */
+	private static List<WeatherDataV2> readTimeSeries(JsonParser parser, long horizonTime) throws IOException {
+		List<WeatherDataV2> timeSeries = new ArrayList<WeatherDataV2>();
+		while (parser.nextToken() == JsonToken.START_OBJECT) {
+			WeatherDataV2 weatherData = JSON.readValue(parser, WeatherDataV2.class);
+			timeSeries.add(weatherData);
+			if (weatherData.getValidTime() != null && weatherData.getValidTime().getTime() >= horizonTime) {
+				break;
+			}
+		}
+		return timeSeries;
+	}
+	
+	/**
+	 * Returns the latest approved run without waiting for the network. A run fetched more than
+	 * {@link #RUN_INTERVAL} ago is not used, SMHI has most likely approved a newer one since.
+	 * 
+	 * @return the approved run, or null if none has been fetched lately or it is not used.
+	 */
+	private SmhiDataListV2 getApprovedRun() {
+		if (sharedCache == null && gridStore == null
+				|| System.currentTimeMillis() - approvedRunFetched >= RUN_INTERVAL) {
+			return null;
+		}
+		return approvedRun;
+	}
+	
+	/**
+	 * Fetches the latest approved run, called from the background run check only.
+	 * 
+	 * @return the approved run, the previous one if it could not be fetched, or null if there is none.
+	 */
+	private SmhiDataListV2 refreshApprovedRun() {
+		SmhiDataListV2 approved = fetchApprovedRun();
+		if (approved != null) {
+			approvedRun = approved;
+			approvedRunFetched = System.currentTimeMillis();
+		}
+		return getApprovedRun();
+	}
+	
+	/**
+	 * Fetches the latest approved run from SMHI, through the shared cache if configured.
+	 * 
+	 * @return the approved run, or null if it could not be fetched.
+	 */
+	private SmhiDataListV2 fetchApprovedRun() {
+		try {
+			String json = fetch(APPROVED_TIME_KEY, false, approvedTimeLatency, APPROVED_TIME_URL, APPROVED_TIME_KEY,
+					System.currentTimeMillis() / APPROVED_TIME_MAX_AGE, 0);
+			SmhiDataListV2 approved = JSON.readValue(json, SmhiDataListV2.class);
+			if (approved != null && approved.getApprovedTime() != null && approved.getReferenceTime() != null) {
+				return approved;
+			}
+			logger.error("No approved time in response from SMHI API '" + APPROVED_TIME_URL + "'");
+		} catch (InterruptedException e) {
+			logger.debug("Interrupted while fetching approved time from SMHI API");
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			logger.error("'Exception trace:'" + e.toString());
+		}
+		return null;
+	}
+	
+	/**
+	 * Downloads a document from SMHI. With a shared cache configured, a document is only
+	 * downloaded once per version by all openHAB instances sharing the cache.
+	 * 
+	 * @param rateLimiterKey the resource the request is queued for in the rate limiter
+	 * @param priority true if the resource has never been fetched
+	 * @param tracker response times of the endpoint
+	 * @param version version of the document, 0 bypasses the shared cache
+	 * @param deadline time after which no request is sent any more, 0 for no limit
+	 * @throws TimeoutException if the deadline passed while waiting for the rate limiter
+	 */
+	private String fetch(final Object rateLimiterKey, final boolean priority, final SmhiLatencyTracker tracker,
+			final String url, String cacheKey, long version, final long deadline) throws Exception {
+		final Callable<String> request = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				String json = download(tracker, url);
+				logger.debug("Quering SMHI API: " + url);
+				if (json == null) {
+					throw new IOException("No response from SMHI API '" + url + "'");
+				}
+				return json;
+			}
+		};
+		final Callable<String> hedge = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				acquire(rateLimiterKey, false, deadline);
+				return request.call();
+			}
+		};
+		Callable<String> download = new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				acquire(rateLimiterKey, priority, deadline);
+				long hedgeDelay = hedgePercentile > 0 ? tracker.getHedgeDelay(hedgePercentile) : -1;
+				if (hedgeDelay < 0) {
+					return request.call();
+				}
+				return SmhiHedgedRequest.execute(request, hedge, hedgeDelay, tracker.getTimeout(), requestExecutor, tracker);
+			}
+		};
+		SmhiSharedCache cache = sharedCache;
+		if (cache == null || version == 0) {
+			return download.call();
+		}
+		return cache.get(cacheKey, version, download);
+	}
 		
 	/**
+	 * Sends a request to SMHI. Tests answer requests by overriding this method.
+	 * 
+	 * @return the response, or null if there was none.
+	 */
+	String download(SmhiLatencyTracker tracker, String url) {
+		return tracker.executeUrl(url);
+	}
+	
+	/**
+	 * Waits for the rate limiter.
+	 * 
+	 * @throws TimeoutException if the deadline passed first
+	 */
+	private void acquire(Object rateLimiterKey, boolean priority, long deadline) throws InterruptedException, TimeoutException {
+		if (!rateLimiter.acquire(rateLimiterKey, priority, deadline)) {
+			throw new TimeoutException("Refresh cycle budget spent");
+		}
+	}
+	
+	/**
+	 * Runs hedged requests on the pipeline threads.
+	 */
+	private final Executor requestExecutor = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			SmhiPipeline<PointJob, String, double[]> currentPipeline = pipeline;
+			if (currentPipeline == null || !currentPipeline.execute(command)) {
+				throw new RejectedExecutionException("SMHI pipeline is stopped");
+			}
+		}
+	};
+	
+	/**
+	 * Schedules the points of all items due for refresh in the pipeline. The refresh
+	 * thread never waits on the network, points are fetched and published asynchronously.
+	 * 
 	 * @{inheritDoc}
 	 */
 	@Override
@@ -118,143 +516,678 @@ public class SmhiBinding extends AbstractActiveBinding<SmhiBindingProvider> impl
 			return;
 		}
 		
-		for (SmhiBindingProvider provider : providers) {
-			for (String itemName : provider.getItemNames()) {
-				
-				Long lastUpdateTimeStamp = lastUpdateMap.get(itemName);
-				if (lastUpdateTimeStamp == null) {
-					lastUpdateTimeStamp = 0L;
+		checkRun();
+		
+		// Nothing is allocated per item unless it is due
+		long now = System.currentTimeMillis();
+		long interval = refreshInterval;
+		long deadline = cycleBudget > 0 ? now + cycleBudget : 0;
+		Map<Geometry, PointJob> jobs = null;
+		for (ItemState item : itemStates) {
+			if (isDue(item, now, interval)) {
+				if (jobs == null) {
+					jobs = new HashMap<Geometry, PointJob>();
 				}
-				
-				long timeSinceLastRefresh = System.currentTimeMillis() - lastUpdateTimeStamp;
-				boolean needsUpdate = timeSinceLastRefresh >= refreshInterval;
-				
-				double longitude = 0;
-				double latitude = 0;
-				
-				if (needsUpdate) {		
-					if (provider.getLongitude(itemName) != 0) {
-						longitude = provider.getLongitude(itemName);
-					}
-					else {
-						longitude = homeLongitude; 
-					}
-					if (provider.getLatitude(itemName) != 0) {
-						latitude = provider.getLatitude(itemName);
-					}
-					else {
-						latitude = homeLatitude;
+				addToJob(jobs, item);
+			}
+		}
+		if (jobs == null) {
+			return;
+		}
+		schedule(jobs, now, deadline);
+		
+		if (!logger.isDebugEnabled()) {
+			return;
+		}
+		logger.debug("SMHI refresh cycle: carried over=" + carriedOverCount.getAndSet(0)
+				+ ", overruns=" + overrunCount.getAndSet(0)
+				+ ", first publish=" + firstPublishLatency.get() + " ms");
+		logger.debug("SMHI rate limiter: " + rateLimiter.drainStatistics());
+		logger.debug("SMHI point queries: " + pointFlights.drainStatistics());
+		logger.debug("SMHI forecast cache: " + forecastCache.drainStatistics());
+		logger.debug("SMHI response times: " + pointLatency.drainStatistics() + "; "
+				+ approvedTimeLatency.drainStatistics() + "; " + gridLatency.drainStatistics());
+		SmhiPipeline<PointJob, String, double[]> currentPipeline = pipeline;
+		if (currentPipeline != null) {
+			logger.debug("SMHI pipeline: fetch queue=" + currentPipeline.getFetchQueueSize()
+					+ ", fetching=" + currentPipeline.getFetchesInFlight()
+					+ ", decode queue=" + currentPipeline.getDecodeQueueSize()
+					+ ", publish queue=" + currentPipeline.getPublishQueueSize());
+		}
+	}
+	
+	/**
+	 * An item is due once per refresh interval, when the phase of its point within the interval
+	 * is reached. The points are spread evenly over the interval, so their requests are too.
+	 * 
+	 * @return true if the item has never been scheduled, or not since the last time its phase was reached.
+	 */
+	private static boolean isDue(ItemState item, long now, long interval) {
+		if (item.lastUpdate == 0) {
+			return true;
+		}
+		long phase = (long) (item.phase * interval);
+		return (now - phase) / interval > (item.lastUpdate - phase) / interval;
+	}
+	
+	/**
+	 * Adds an item to the job of its point, unless the point is already in the pipeline.
+	 */
+	private void addToJob(Map<Geometry, PointJob> jobs, ItemState item) {
+		if (scheduledPoints.contains(item.point)) {
+			overrunCount.incrementAndGet();
+			logger.debug("Refresh of item {} already in progress", item.itemName);
+			return;
+		}
+		PointJob job = jobs.get(item.point);
+		if (job == null) {
+			job = new PointJob(item.point);
+			jobs.put(item.point, job);
+		}
+		job.items.add(item);
+		job.oldestUpdate = Math.min(job.oldestUpdate, item.lastUpdate);
+	}
+	
+	/**
+	 * Hands jobs to the pipeline without blocking, the points refreshed longest ago first. Jobs
+	 * that don't fit, or are still waiting for a fetch or the rate limiter when the deadline has
+	 * passed, are carried over to the next cycle.
+	 * 
+	 * The items of a job are stamped with the cycle time when it is queued, so they are due again
+	 * at the next phase of their point, however long the fetch takes.
+	 * 
+	 * @param now start time of the cycle
+	 * @param deadline time after which no new fetches are started, 0 for no limit
+	 */
+	private void schedule(Map<Geometry, PointJob> jobs, long now, long deadline) {
+		SmhiPipeline<PointJob, String, double[]> currentPipeline = pipeline;
+		if (currentPipeline == null) {
+			return;
+		}
+		List<PointJob> ordered = new ArrayList<PointJob>(jobs.values());
+		Collections.sort(ordered, OLDEST_FIRST);
+		int deferred = 0;
+		for (PointJob job : ordered) {
+			if (!scheduledPoints.add(job.point)) {
+				continue;
+			}
+			job.deadline = deadline;
+			for (ItemState item : job.items) {
+				item.lastUpdate = now;
+			}
+			if (!currentPipeline.submit(job)) {
+				scheduledPoints.remove(job.point);
+				job.restoreLastUpdate();
+				deferred++;
+			}
+		}
+		if (deferred > 0) {
+			carriedOverCount.addAndGet(deferred);
+			logger.debug("SMHI pipeline full, " + deferred + " points left for the next refresh cycle");
+		}
+	}
+	
+	/**
+	 * Checks for a new approved run and updates the grid in the background, at most once per
+	 * {@link #APPROVED_TIME_MAX_AGE}.
+	 */
+	private void checkRun() {
+		SmhiPipeline<PointJob, String, double[]> currentPipeline = pipeline;
+		if (currentPipeline == null || (sharedCache == null && gridStore == null)
+				|| System.currentTimeMillis() - lastRunCheck < APPROVED_TIME_MAX_AGE
+				|| !runCheckInFlight.compareAndSet(false, true)) {
+			return;
+		}
+		lastRunCheck = System.currentTimeMillis();
+		boolean started = currentPipeline.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					updateGrid(refreshApprovedRun());
+					SmhiSharedCache cache = sharedCache;
+					if (cache != null) {
+						cache.deleteStaleEntries();
 					}
+				} finally {
+					runCheckInFlight.set(false);
+				}
+			}
+		});
+		if (!started) {
+			runCheckInFlight.set(false);
+		}
+	}
 	
-					List<Double> tmpPos = new ArrayList<Double>();
-					tmpPos.add(longitude);
-					tmpPos.add(latitude);
-					List<List<Double>> tmpPosList = new ArrayList<List<Double>>();
-					tmpPosList.add(tmpPos);
-					Geometry point = new Geometry(tmpPosList);
-					 
-					// Check if actual weather data for point is already cached
-					WeatherDataV2 actualWeatherData = actualWeatherDataMap.get(point);
-					
-					if (actualWeatherData == null) {
-						// Query SMHI API
-						SmhiDataListV2 dataList = executeQuery(longitude, latitude);
-						if (dataList != null) {
-						
-							// Find in time matching time serie
-							Date now = new Date();
-							List<WeatherDataV2> timeSeries = dataList.getTimeSeries();
-							while (timeSeries.get(0).getValidTime().before(now) && timeSeries.size() > 1) {
-								timeSeries.remove(0);
-							}
+	/**
+	 * @return the position of an item, the home position if the item doesn't configure one.
+	 */
+	private Geometry getPoint(SmhiBindingProvider provider, String itemName) {
+		double longitude = 0;
+		double latitude = 0;
+		
+		if (provider.getLongitude(itemName) != 0) {
+			longitude = provider.getLongitude(itemName);
+		}
+		else {
+			longitude = homeLongitude; 
+		}
+		if (provider.getLatitude(itemName) != 0) {
+			latitude = provider.getLatitude(itemName);
+		}
+		else {
+			latitude = homeLatitude;
+		}
 
-							// Fetch actual data serie
-							actualWeatherData = timeSeries.get(0);
-							// Populate values
-							actualWeatherData.processData();
-							// Polulate internal map with API request results
-							actualWeatherDataMap.put(point, actualWeatherData);
-						}
-						else {
-							logger.error("SMHI API query failed!");
-							return;
-						}
+		List<Double> tmpPos = new ArrayList<Double>();
+		tmpPos.add(longitude);
+		tmpPos.add(latitude);
+		List<List<Double>> tmpPosList = new ArrayList<List<Double>>();
+		tmpPosList.add(tmpPos);
+		return new Geometry(tmpPosList);
+	}
+	
+	/**
+	 * The pipeline stages of a point: fetch its forecast unless the grid covers all of its items,
+	 * compute the current value of each item and post the values to the event bus.
+	 */
+	private class PointStages implements SmhiPipeline.Stages<PointJob, String, double[]> {
+		
+		@Override
+		public String fetch(PointJob job) throws Exception {
+			SmhiGridStore store = gridStore;
+			job.gridRun = store != null ? store.getRun() : null;
+			// Exported series come from the point forecast, which is fetched once per run
+			SmhiForecastExporter currentExporter = exporter;
+			if (job.gridRun != null && isCoveredByGrid(job) && (currentExporter == null
+					|| currentExporter.isExported(job.latitude, job.longitude, job.gridRun.getApprovedTime()))) {
+				return null;
+			}
+			if (job.fromCache) {
+				SmhiRunHistory history = forecastCache.get(job.point);
+				if (history != null && history.getRunCount() > 0) {
+					return null;
+				}
+			}
+			if (job.deadline != 0 && System.currentTimeMillis() > job.deadline) {
+				throw new TimeoutException("Refresh cycle budget spent");
+			}
+			return executeQuery(job.point, job.longitude, job.latitude, job.deadline);
+		}
+		
+		@Override
+		public double[] decode(PointJob job, String json) throws Exception {
+			SmhiDataListV2 dataList = null;
+			if (json != null) {
+				// The history keeps a run until the next ones arrive, so it must cover the horizon
+				// until then for revision and tendency items
+				dataList = decodePoint(json, System.currentTimeMillis() + horizon + refreshInterval + RUN_INTERVAL);
+				if (getHistory(job.point).add(dataList)) {
+					logger.debug("New SMHI run for " + job.latitude + ":" + job.longitude + " added to history");
+				}
+				SmhiForecastExporter currentExporter = exporter;
+				if (currentExporter != null && dataList.getApprovedTime() != null
+						&& !currentExporter.isExported(job.latitude, job.longitude, dataList.getApprovedTime().getTime())) {
+					export(currentExporter, job, json);
+				}
+			}
+			SmhiRunHistory history = forecastCache.get(job.point);
+			
+			long now = System.currentTimeMillis();
+			double[] values = new double[job.items.size()];
+			// Derived values of the point per item time, computed once for all items
+			Map<Long, double[]> derivedValues = new HashMap<Long, double[]>();
+			for (int i = 0; i < values.length; i++) {
+				ItemState item = job.items.get(i);
+				long time = now + item.offset;
+				if (item.derivedIndex >= 0) {
+					double[] derived = derivedValues.get(time);
+					if (derived == null) {
+						derived = getDerivedValues(job, dataList, history, time);
+						derivedValues.put(time, derived);
 					}
-
-					// Try to find value of seeked parameter
-					double value = -1;
-					
-					switch (provider.getParameter(itemName)) {
-					case SmhiConstants.PARAMETER_TEMPERATURE:
-						value = actualWeatherData.getTemperature();
-						break;
-					case SmhiConstants.PARAMETER_THUNDERSTORM:
-						value = actualWeatherData.getProbabilityThunderstorm();
-						break;
-					case SmhiConstants.PARAMETER_TOTAL_CLOUD_COVER:
-						value = actualWeatherData.getTotalCloudCover();
-						break;
-					case SmhiConstants.PARAMETER_HIGH_CLOUD_COVER:
-						value = actualWeatherData.getHighCloudCover();
-						break;
-					case SmhiConstants.PARAMETER_MEDIUM_CLOUD_COVER:
-						value = actualWeatherData.getMediumCloudCover();
-						break;
-					case SmhiConstants.PARAMETER_LOW_CLOUD_COVER:
-						value = actualWeatherData.getLowCloudCover();
-						break;	
-					case SmhiConstants.PARAMETER_HUMIDITY:
-						value = actualWeatherData.getHumidity();
-						break;
-					case SmhiConstants.PARAMETER_MAX_PRECIPITATION:
-						value = actualWeatherData.getMaxPrecipitation();
-						break;
-					case SmhiConstants.PARAMETER_MIN_PRECIPITATION:
-						value = actualWeatherData.getMinPrecipitation();
-						break;
-					case SmhiConstants.PARAMETER_FROZEN_PRECIPITATION:
-						value = actualWeatherData.getFroozenPrecipitation();
-						break;
-					case SmhiConstants.PARAMETER_PRECIPITATION_CATEGORY:
-						value = actualWeatherData.getPrecipitationCategory();
-						break;
-					case SmhiConstants.PARAMETER_MEDIAN_PRECIPITATION:
-						value = actualWeatherData.getMedianPrecipitation();
-						break;
-					case SmhiConstants.PARAMETER_MEAN_PRECIPITATION:
-						value = actualWeatherData.getMeanPrecipitation();
-						break;
-					case SmhiConstants.PARAMETER_PRESSURE:
-						value = actualWeatherData.getPressure();
-						break;
-					case SmhiConstants.PARAMETER_VISIBILITY:
-						value = actualWeatherData.getVisibility();
-						break;
-					case SmhiConstants.PARAMETER_WIND_DIRECTION:
-						value = actualWeatherData.getWindDirection();
-						break;
-					case SmhiConstants.PARAMETER_WIND_GUST:
-						value = actualWeatherData.getWindGust();
-						break;
-					case SmhiConstants.PARAMETER_WIND_VELOCITY:
-						value = actualWeatherData.getWindVelocity();
-						break;
-					default:
-						value = -1;
+					values[i] = derived[item.derivedIndex];
+				}
+				else {
+					values[i] = getItemValue(job, dataList, history, item.parameter, time);
+				}
+			}
+			return values;
+		}
+		
+		@Override
+		public void publish(PointJob job, double[] values) {
+			try {
+				for (int i = 0; i < values.length; i++) {
+					ItemState item = job.items.get(i);
+					if (!Double.isNaN(values[i])) {
+						postUpdate(item.itemName, values[i]);
 					}
+				}
+			} finally {
+				scheduledPoints.remove(job.point);
+			}
+		}
+		
+		@Override
+		public void failed(PointJob job, Throwable cause) {
+			scheduledPoints.remove(job.point);
+			if (cause instanceof TimeoutException) {
+				// Its items are due again, so the point goes first in the next cycle
+				job.restoreLastUpdate();
+				carriedOverCount.incrementAndGet();
+				logger.debug("SMHI refresh cycle budget spent, " + job.latitude + ":" + job.longitude + " carried over");
+			}
+			else if (cause instanceof InterruptedException || cause instanceof CancellationException) {
+				logger.debug("SMHI API query for " + job.latitude + ":" + job.longitude + " was cancelled");
+			}
+			else {
+				logger.error("SMHI API query failed! 'Exception trace:'" + cause.toString());
+			}
+		}
+	}
+	
+	/**
+	 * Decodes the whole series of a new run and exports it in the background.
+	 */
+	private void export(final SmhiForecastExporter currentExporter, final PointJob job, final String json) {
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					currentExporter.export(job.latitude, job.longitude, decodePoint(json, Long.MAX_VALUE));
+				} catch (IOException e) {
+					logger.error("Could not export SMHI forecast for " + job.latitude + ":" + job.longitude
+							+ " 'Exception trace:'" + e.toString());
+				}
+			}
+		};
+		SmhiPipeline<PointJob, String, double[]> currentPipeline = pipeline;
+		if (currentPipeline == null || !currentPipeline.execute(task)) {
+			logger.debug("SMHI pipeline stopped, forecast for " + job.latitude + ":" + job.longitude + " not exported");
+		}
+	}
+	
+	/**
+	 * Computes the value of an item parameter at a time, from the run history for revision
+	 * and tendency parameters, otherwise interpolated from the grid or taken from the point forecast.
+	 * 
+	 * @return the value, or NaN if it is not available.
+	 */
+	private double getItemValue(PointJob job, SmhiDataListV2 dataList, SmhiRunHistory history, String parameter, long time) {
+		if (parameter.endsWith(SmhiConstants.PARAMETER_SUFFIX_REVISION)) {
+			String base = parameter.substring(0, parameter.length() - SmhiConstants.PARAMETER_SUFFIX_REVISION.length());
+			int index = SmhiRunHistory.indexOf(getJsonParameter(base));
+			return history != null && index >= 0 ? history.getRevision(index, time) : Double.NaN;
+		}
+		if (parameter.endsWith(SmhiConstants.PARAMETER_SUFFIX_TENDENCY)) {
+			String base = parameter.substring(0, parameter.length() - SmhiConstants.PARAMETER_SUFFIX_TENDENCY.length());
+			int index = SmhiRunHistory.indexOf(getJsonParameter(base));
+			return history != null && index >= 0 ? history.getTendency(index, time, TENDENCY_PERIOD) : Double.NaN;
+		}
+		
+		// Interpolate from cached grid fields when available
+		if (job.gridRun != null) {
+			double value = getGridValue(job.gridRun, job.point, job.longitude, job.latitude, parameter, time);
+			if (!Double.isNaN(value)) {
+				return value;
+			}
+		}
+		if (dataList == null) {
+			// Latest cached run of the point
+			return history != null ? history.getValue(0, SmhiRunHistory.indexOf(getJsonParameter(parameter)), time) : Double.NaN;
+		}
+		
+		// Find in time matching time serie
+		List<WeatherDataV2> timeSeries = dataList.getTimeSeries();
+		int index = 0;
+		while (timeSeries.get(index).getValidTime().getTime() < time && index < timeSeries.size() - 1) {
+			index++;
+		}
+		return getValue(timeSeries.get(index), parameter);
+	}
+	
+	/**
+	 * Computes all derived values of a point at a time from its temperature, humidity and wind.
+	 * 
+	 * @return the values indexed by {@link SmhiDerivedParameters} slot.
+	 */
+	private double[] getDerivedValues(PointJob job, SmhiDataListV2 dataList, SmhiRunHistory history, long time) {
+		double[] derived = new double[SmhiDerivedParameters.COUNT];
+		SmhiDerivedParameters.compute(
+				getItemValue(job, dataList, history, SmhiConstants.PARAMETER_TEMPERATURE, time),
+				getItemValue(job, dataList, history, SmhiConstants.PARAMETER_HUMIDITY, time),
+				getItemValue(job, dataList, history, SmhiConstants.PARAMETER_WIND_VELOCITY, time),
+				getItemValue(job, dataList, history, SmhiConstants.PARAMETER_WIND_DIRECTION, time),
+				derived);
+		return derived;
+	}
+	
+	/**
+	 * @return the run history of a point, created on first use and again when the number of runs
+	 * or the horizon changed.
+	 */
+	private SmhiRunHistory getHistory(Geometry point) {
+		SmhiRunHistory history = forecastCache.get(point);
+		int steps = getHistorySteps();
+		if (history == null || history.getCapacity() != Math.max(SmhiRunHistory.MIN_CAPACITY, historyRuns)
+				|| history.getSteps() != steps) {
+			history = new SmhiRunHistory(historyRuns, steps);
+			forecastCache.put(point, history);
+		}
+		return history;
+	}
+	
+	/**
+	 * @return the time steps a run history keeps per run, as many as a series decoded up to the
+	 * horizon can have.
+	 */
+	private int getHistorySteps() {
+		// A series starts at the reference time of its run and is decoded past the horizon, see decode
+		long span = RUN_APPROVAL_DELAY + RUN_INTERVAL + horizon + refreshInterval + RUN_INTERVAL;
+		return (int) Math.min(SmhiRunHistory.MAX_STEPS, span / STEP_INTERVAL + 2);
+	}
+	
+	/**
+	 * @return true if the values of all items of the job can be interpolated from its grid run.
+	 */
+	private boolean isCoveredByGrid(PointJob job) {
+		if (getGridLocation(job.gridRun, job.point, job.longitude, job.latitude) == null) {
+			return false;
+		}
+		// The run is only loaded up to the horizon at the time it was loaded
+		int stepCount = job.gridRun.getStepCount();
+		long lastValidTime = stepCount > 0 ? job.gridRun.getValidTime(stepCount - 1) : 0;
+		long now = System.currentTimeMillis();
+		for (ItemState item : job.items) {
+			if (now + item.offset > lastValidTime) {
+				return false;
+			}
+			for (String parameter : getInputParameters(item.parameter)) {
+				String jsonParameter = getJsonParameter(parameter);
+				if (jsonParameter == null || job.gridRun.getParameterIndex(jsonParameter) < 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the value of an item parameter, or NaN if the parameter is unknown.
+	 */
+	private static double getValue(WeatherDataV2 actualWeatherData, String parameter) {
+		double value = Double.NaN;
+		
+		switch (parameter) {
+		case SmhiConstants.PARAMETER_TEMPERATURE:
+			value = actualWeatherData.getTemperature();
+			break;
+		case SmhiConstants.PARAMETER_THUNDERSTORM:
+			value = actualWeatherData.getProbabilityThunderstorm();
+			break;
+		case SmhiConstants.PARAMETER_TOTAL_CLOUD_COVER:
+			value = actualWeatherData.getTotalCloudCover();
+			break;
+		case SmhiConstants.PARAMETER_HIGH_CLOUD_COVER:
+			value = actualWeatherData.getHighCloudCover();
+			break;
+		case SmhiConstants.PARAMETER_MEDIUM_CLOUD_COVER:
+			value = actualWeatherData.getMediumCloudCover();
+			break;
+		case SmhiConstants.PARAMETER_LOW_CLOUD_COVER:
+			value = actualWeatherData.getLowCloudCover();
+			break;	
+		case SmhiConstants.PARAMETER_HUMIDITY:
+			value = actualWeatherData.getHumidity();
+			break;
+		case SmhiConstants.PARAMETER_MAX_PRECIPITATION:
+			value = actualWeatherData.getMaxPrecipitation();
+			break;
+		case SmhiConstants.PARAMETER_MIN_PRECIPITATION:
+			value = actualWeatherData.getMinPrecipitation();
+			break;
+		case SmhiConstants.PARAMETER_FROZEN_PRECIPITATION:
+			value = actualWeatherData.getFroozenPrecipitation();
+			break;
+		case SmhiConstants.PARAMETER_PRECIPITATION_CATEGORY:
+			value = actualWeatherData.getPrecipitationCategory();
+			break;
+		case SmhiConstants.PARAMETER_MEDIAN_PRECIPITATION:
+			value = actualWeatherData.getMedianPrecipitation();
+			break;
+		case SmhiConstants.PARAMETER_MEAN_PRECIPITATION:
+			value = actualWeatherData.getMeanPrecipitation();
+			break;
+		case SmhiConstants.PARAMETER_PRESSURE:
+			value = actualWeatherData.getPressure();
+			break;
+		case SmhiConstants.PARAMETER_VISIBILITY:
+			value = actualWeatherData.getVisibility();
+			break;
+		case SmhiConstants.PARAMETER_WIND_DIRECTION:
+			value = actualWeatherData.getWindDirection();
+			break;
+		case SmhiConstants.PARAMETER_WIND_GUST:
+			value = actualWeatherData.getWindGust();
+			break;
+		case SmhiConstants.PARAMETER_WIND_VELOCITY:
+			value = actualWeatherData.getWindVelocity();
+			break;
+		default:
+			value = Double.NaN;
+		}
 
-					if (value != -1){
-						eventPublisher.postUpdate(itemName, new DecimalType(value));
+		return value;
+	}
+	
+	private void postUpdate(String itemName, double value) {
+		eventPublisher.postUpdate(itemName, new DecimalType(value));
+		if (firstPublishLatency.get() < 0) {
+			long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - publishLatencyStart);
+			if (firstPublishLatency.compareAndSet(-1, latency)) {
+				logger.info("First SMHI value published " + latency + " ms after start");
+			}
+		}
+	}
+	
+	/**
+	 * @return the start of the cycle the item was last scheduled in, 0 if never or if the item is not bound.
+	 */
+	long getLastUpdate(String itemName) {
+		for (ItemState item : itemStates) {
+			if (item.itemName.equals(itemName)) {
+				return item.lastUpdate;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Schedules all points whose items have never been scheduled, so they are fetched
+	 * concurrently and published as soon as each point arrives. Returns immediately.
+	 */
+	private void startWarmUp() {
+		if (pipeline == null || !isProperlyConfigured() || !bindingsExist()) {
+			return;
+		}
+		Map<Geometry, PointJob> jobs = new HashMap<Geometry, PointJob>();
+		for (ItemState item : itemStates) {
+			if (item.lastUpdate == 0) {
+				addToJob(jobs, item);
+			}
+		}
+		if (!jobs.isEmpty()) {
+			logger.debug("Warming up " + jobs.size() + " SMHI points");
+			checkRun();
+			schedule(jobs, System.currentTimeMillis(), 0);
+		}
+	}
+	
+	/**
+	 * Refreshes the items using the home position after it has moved, from the cached runs of
+	 * the new position if there are any. Items with their own position are left alone.
+	 */
+	private void refreshHomeItems() {
+		if (pipeline == null || !bindingsExist()) {
+			return;
+		}
+		Map<Geometry, PointJob> jobs = new HashMap<Geometry, PointJob>();
+		for (ItemState item : itemStates) {
+			if (item.home) {
+				item.lastUpdate = 0;
+				addToJob(jobs, item);
+			}
+		}
+		for (PointJob job : jobs.values()) {
+			job.fromCache = true;
+		}
+		if (!jobs.isEmpty()) {
+			logger.debug("SMHI home position moved to " + homeLatitude + ":" + homeLongitude
+					+ ", refreshing " + jobs.size() + " points");
+			schedule(jobs, System.currentTimeMillis(), 0);
+		}
+	}
+	
+	/**
+	 * Loads a new grid run if SMHI has approved one since the last check, or if bound items
+	 * need parameters that are not stored yet.
+	 * 
+	 * @return the grid run to interpolate from, or null if grid fields are not used.
+	 */
+	private GridRun updateGrid(SmhiDataListV2 approved) {
+		SmhiGridStore store = gridStore;
+		SmhiGridLoader loader = gridLoader;
+		if (store == null || loader == null) {
+			return null;
+		}
+		
+		Set<String> jsonParameters = new LinkedHashSet<String>();
+		for (ItemState item : itemStates) {
+			for (String parameter : getInputParameters(item.parameter)) {
+				String jsonParameter = getJsonParameter(parameter);
+				if (jsonParameter != null) {
+					jsonParameters.add(jsonParameter);
+					if (SmhiConstants.PARAMETER_WIND_DIRECTION_JSON.equals(jsonParameter)) {
+						jsonParameters.add(SmhiConstants.PARAMETER_WIND_VELOCITY_JSON);
 					}
-					lastUpdateMap.put(itemName, System.currentTimeMillis());
-				}	
-				else {
-					logger.debug("Not time to refresh item: " + itemName);
 				}
 			}
 		}
-		// Clear all cached weather data
-		actualWeatherDataMap.clear();
+		
+		if (approved != null) {
+			// The run is used until the next one is loaded, normally an hour later
+			long horizonTime = approved.getApprovedTime().getTime() + 2 * RUN_INTERVAL + horizon;
+			loader.update(approved, jsonParameters.toArray(new String[jsonParameters.size()]), horizonTime);
+		}
+		return store.getRun();
+	}
+	
+	/**
+	 * Interpolates the value of an item parameter at a position and time from a grid run.
+	 * 
+	 * @return the value, or NaN if the position, parameter or time is not covered by the run.
+	 */
+	private double getGridValue(GridRun run, Geometry point, double longitude, double latitude, String parameter, long time) {
+		String jsonParameter = getJsonParameter(parameter);
+		int parameterIndex = jsonParameter != null ? run.getParameterIndex(jsonParameter) : -1;
+		if (parameterIndex < 0 || run.getStepCount() == 0 || time > run.getValidTime(run.getStepCount() - 1)) {
+			return Double.NaN;
+		}
+		
+		Location location = getGridLocation(run, point, longitude, latitude);
+		if (location == null) {
+			return Double.NaN;
+		}
+		
+		int step = SmhiGridInterpolator.findStep(run, time);
+		switch (jsonParameter) {
+		case SmhiConstants.PARAMETER_WIND_DIRECTION_JSON:
+			int velocityIndex = run.getParameterIndex(SmhiConstants.PARAMETER_WIND_VELOCITY_JSON);
+			if (velocityIndex < 0) {
+				return SmhiGridInterpolator.nearest(location, parameterIndex, step);
+			}
+			return SmhiGridInterpolator.interpolateDirection(location, parameterIndex, velocityIndex, step);
+		case SmhiConstants.PARAMETER_PRECIPITATION_CATEGORY_JSON:
+		case SmhiConstants.PARAMETER_FROZEN_PRECIPITATION_JSON:
+			// Categorical, or -9 where there is no precipitation, neither can be averaged
+			return SmhiGridInterpolator.nearest(location, parameterIndex, step);
+		default:
+			return SmhiGridInterpolator.interpolate(location, parameterIndex, step);
+		}
+	}
+	
+	/**
+	 * @return the interpolation weights of a position in a grid run, or null if the position is outside the grid.
+	 */
+	private Location getGridLocation(GridRun run, Geometry point, double longitude, double latitude) {
+		Location location = gridLocationMap.get(point);
+		if (location == null || location.getRun() != run) {
+			location = SmhiGridInterpolator.locate(run, longitude, latitude);
+			if (location == null) {
+				logger.debug("Position " + latitude + ":" + longitude + " is outside the SMHI grid");
+				gridLocationMap.remove(point);
+				return null;
+			}
+			gridLocationMap.put(point, location);
+		}
+		return location;
+	}
+	
+	/**
+	 * @return the item parameters a value is computed from, the parameter itself unless it is derived.
+	 */
+	private static String[] getInputParameters(String parameter) {
+		String[] inputs = SmhiDerivedParameters.getInputs(parameter);
+		return inputs != null ? inputs : new String[] { parameter };
+	}
+	
+	/**
+	 * @return the SMHI JSON name of an item parameter, or null if the parameter is unknown.
+	 */
+	private static String getJsonParameter(String parameter) {
+		if (parameter == null) {
+			return null;
+		}
+		switch (parameter) {
+		case SmhiConstants.PARAMETER_TEMPERATURE:
+			return SmhiConstants.PARAMETER_TEMPERATURE_JSON;
+		case SmhiConstants.PARAMETER_THUNDERSTORM:
+			return SmhiConstants.PARAMETER_THUNDERSTORM_JSON;
+		case SmhiConstants.PARAMETER_TOTAL_CLOUD_COVER:
+			return SmhiConstants.PARAMETER_TOTAL_CLOUD_COVER_JSON;
+		case SmhiConstants.PARAMETER_HIGH_CLOUD_COVER:
+			return SmhiConstants.PARAMETER_HIGH_CLOUD_COVER_JSON;
+		case SmhiConstants.PARAMETER_MEDIUM_CLOUD_COVER:
+			return SmhiConstants.PARAMETER_MEDIUM_CLOUD_COVER_JSON;
+		case SmhiConstants.PARAMETER_LOW_CLOUD_COVER:
+			return SmhiConstants.PARAMETER_LOW_CLOUDS_JSON;
+		case SmhiConstants.PARAMETER_HUMIDITY:
+			return SmhiConstants.PARAMETER_HUMIDITY_JSON;
+		case SmhiConstants.PARAMETER_MAX_PRECIPITATION:
+			return SmhiConstants.PARAMETER_MAX_PRECIPITATION_JSON;
+		case SmhiConstants.PARAMETER_MIN_PRECIPITATION:
+			return SmhiConstants.PARAMETER_MIN_PRECIPITATION_JSON;
+		case SmhiConstants.PARAMETER_FROZEN_PRECIPITATION:
+			return SmhiConstants.PARAMETER_FROZEN_PRECIPITATION_JSON;
+		case SmhiConstants.PARAMETER_PRECIPITATION_CATEGORY:
+			return SmhiConstants.PARAMETER_PRECIPITATION_CATEGORY_JSON;
+		case SmhiConstants.PARAMETER_MEDIAN_PRECIPITATION:
+			return SmhiConstants.PARAMETER_MEDIAN_PRECIPITATION_JSON;
+		case SmhiConstants.PARAMETER_MEAN_PRECIPITATION:
+			return SmhiConstants.PARAMETER_MEAN_PRECIPITATION_JSON;
+		case SmhiConstants.PARAMETER_PRESSURE:
+			return SmhiConstants.PARAMETER_PRESSURE_JSON;
+		case SmhiConstants.PARAMETER_VISIBILITY:
+			return SmhiConstants.PARAMETER_VISIBILITY_JSON;
+		case SmhiConstants.PARAMETER_WIND_DIRECTION:
+			return SmhiConstants.PARAMETER_WIND_DIRECTION_JSON;
+		case SmhiConstants.PARAMETER_WIND_GUST:
+			return SmhiConstants.PARAMETER_WIND_GUST_JSON;
+		case SmhiConstants.PARAMETER_WIND_VELOCITY:
+			return SmhiConstants.PARAMETER_WIND_VELOCITY_JSON;
+		default:
+			return null;
+		}
 	}
 		
 	/**
@@ -265,6 +1198,11 @@ public class SmhiBinding extends AbstractActiveBinding<SmhiBindingProvider> impl
 		logger.debug("Updated called");
 		if (properties != null) {
 			logger.debug("Updated called, properties are not null");
+			boolean wasConfigured = isProperlyConfigured();
+			double previousLatitude = homeLatitude;
+			double previousLongitude = homeLongitude;
+			long previousRefreshInterval = refreshInterval;
+			
 			String cfgLatitude = (String) properties.get(CONFIG_KEY_LATITUDE);
 			String cfgLongitude = (String) properties.get(CONFIG_KEY_LONGITUDE);
 			if (StringUtils.isNotBlank(cfgLatitude) && StringUtils.isNotBlank(cfgLongitude)) {
@@ -279,11 +1217,174 @@ public class SmhiBinding extends AbstractActiveBinding<SmhiBindingProvider> impl
 			
 			String refreshIntervalString = (String) properties.get(CONFIG_KEY_REFRESH);
 			if (StringUtils.isNotBlank(refreshIntervalString)) {
-				refreshInterval = Long.parseLong(refreshIntervalString);
+				long interval;
+				try {
+					interval = Long.parseLong(refreshIntervalString.trim());
+				} catch (NumberFormatException ex) {
+					throw new ConfigurationException("smhi",
+							"Parameter refresh in wrong format. Please check your openhab.cfg!");
+				}
+				if (interval <= 0) {
+					throw new ConfigurationException("smhi",
+							"Parameter refresh must be greater than 0. Please check your openhab.cfg!");
+				}
+				refreshInterval = interval;
+			}
+			
+			String rateString = (String) properties.get(CONFIG_KEY_RATELIMIT_RATE);
+			String burstString = (String) properties.get(CONFIG_KEY_RATELIMIT_BURST);
+			try {
+				double rate = StringUtils.isNotBlank(rateString) ? Double.parseDouble(rateString) : DEFAULT_RATELIMIT_RATE;
+				int burst = StringUtils.isNotBlank(burstString) ? Integer.parseInt(burstString) : DEFAULT_RATELIMIT_BURST;
+				rateLimiter.setRate(rate, burst);
+			} catch (NumberFormatException ex) {
+				throw new ConfigurationException("smhi",
+						"Parameters ratelimit.rate and/or ratelimit.burst in wrong format. Please check your openhab.cfg!");
+			}
+			
+			String historyRunsString = (String) properties.get(CONFIG_KEY_HISTORY_RUNS);
+			int runs;
+			try {
+				runs = StringUtils.isNotBlank(historyRunsString) ? Integer.parseInt(historyRunsString.trim()) : DEFAULT_HISTORY_RUNS;
+			} catch (NumberFormatException ex) {
+				throw new ConfigurationException("smhi",
+						"Parameter history.runs in wrong format. Please check your openhab.cfg!");
+			}
+			if (runs < SmhiRunHistory.MIN_CAPACITY) {
+				throw new ConfigurationException("smhi",
+						"Parameter history.runs must be at least " + SmhiRunHistory.MIN_CAPACITY + ". Please check your openhab.cfg!");
+			}
+			historyRuns = runs;
+			
+			String hedgePercentileString = (String) properties.get(CONFIG_KEY_HEDGE_PERCENTILE);
+			try {
+				hedgePercentile = StringUtils.isNotBlank(hedgePercentileString) ? Double.parseDouble(hedgePercentileString.trim()) : 0;
+			} catch (NumberFormatException ex) {
+				throw new ConfigurationException("smhi",
+						"Parameter hedge.percentile in wrong format. Please check your openhab.cfg!");
+			}
+			if (hedgePercentile < 0 || hedgePercentile >= 100) {
+				throw new ConfigurationException("smhi",
+						"Parameter hedge.percentile must be between 0 and 100. Please check your openhab.cfg!");
+			}
+			
+			String cycleBudgetString = (String) properties.get(CONFIG_KEY_CYCLE_BUDGET);
+			try {
+				cycleBudget = StringUtils.isNotBlank(cycleBudgetString) ? Long.parseLong(cycleBudgetString.trim()) : 0;
+			} catch (NumberFormatException ex) {
+				throw new ConfigurationException("smhi",
+						"Parameter cycle.budget in wrong format. Please check your openhab.cfg!");
+			}
+			
+			String horizonString = (String) properties.get(CONFIG_KEY_HORIZON);
+			try {
+				configuredHorizon = StringUtils.isNotBlank(horizonString) ? TimeUnit.HOURS.toMillis(Long.parseLong(horizonString.trim())) : 0;
+			} catch (NumberFormatException ex) {
+				throw new ConfigurationException("smhi",
+						"Parameter horizon in wrong format. Please check your openhab.cfg!");
+			}
+			
+			String historyMaxBytesString = (String) properties.get(CONFIG_KEY_HISTORY_MAX_BYTES);
+			String historyMaxPointsString = (String) properties.get(CONFIG_KEY_HISTORY_MAX_POINTS);
+			try {
+				long maxBytes = StringUtils.isNotBlank(historyMaxBytesString) ? Long.parseLong(historyMaxBytesString.trim()) : DEFAULT_HISTORY_MAX_BYTES;
+				int maxPoints = StringUtils.isNotBlank(historyMaxPointsString) ? Integer.parseInt(historyMaxPointsString.trim()) : DEFAULT_HISTORY_MAX_POINTS;
+				forecastCache.setBudget(maxBytes, maxPoints);
+			} catch (NumberFormatException ex) {
+				throw new ConfigurationException("smhi",
+						"Parameters history.maxbytes and/or history.maxpoints in wrong format. Please check your openhab.cfg!");
+			}
+			
+			String cacheDirectoryString = (String) properties.get(CONFIG_KEY_CACHE_DIRECTORY);
+			if (StringUtils.isNotBlank(cacheDirectoryString)) {
+				File cacheDirectory = new File(cacheDirectoryString.trim());
+				if (sharedCache == null || !sharedCache.getDirectory().equals(cacheDirectory)) {
+					try {
+						sharedCache = new SmhiSharedCache(cacheDirectory);
+					} catch (IOException e) {
+						throw new ConfigurationException("smhi",
+								"Could not open cache directory '" + cacheDirectory + "': " + e.getMessage());
+					}
+				}
+			}
+			else {
+				sharedCache = null;
+			}
+			
+			String gridDirectoryString = (String) properties.get(CONFIG_KEY_GRID_DIRECTORY);
+			if (StringUtils.isNotBlank(gridDirectoryString)) {
+				File gridDirectory = new File(gridDirectoryString.trim());
+				if (gridStore == null || !gridStore.getDirectory().equals(gridDirectory)) {
+					SmhiGridStore store = new SmhiGridStore(gridDirectory);
+					try {
+						store.open();
+					} catch (IOException e) {
+						throw new ConfigurationException("smhi",
+								"Could not open grid directory '" + gridDirectory + "': " + e.getMessage());
+					}
+					gridStore = store;
+					gridLoader = new SmhiGridLoader(store, rateLimiter, gridLatency);
+					gridLocationMap.clear();
+				}
+			}
+			else {
+				gridStore = null;
+				gridLoader = null;
+				gridLocationMap.clear();
+			}
+			
+			String exportDirectoryString = (String) properties.get(CONFIG_KEY_EXPORT_DIRECTORY);
+			String exportParametersString = (String) properties.get(CONFIG_KEY_EXPORT_PARAMETERS);
+			String exportRunsString = (String) properties.get(CONFIG_KEY_EXPORT_RUNS);
+			if (StringUtils.isNotBlank(exportDirectoryString)) {
+				int exportRuns;
+				try {
+					exportRuns = StringUtils.isNotBlank(exportRunsString) ? Integer.parseInt(exportRunsString.trim()) : DEFAULT_EXPORT_RUNS;
+				} catch (NumberFormatException ex) {
+					throw new ConfigurationException("smhi",
+							"Parameter export.runs in wrong format. Please check your openhab.cfg!");
+				}
+				if (StringUtils.isBlank(exportParametersString)) {
+					throw new ConfigurationException("smhi",
+							"Parameter export.parameters is missing. Please check your openhab.cfg!");
+				}
+				String[] exportParameters = exportParametersString.trim().toLowerCase().split("\\s*,\\s*");
+				String[] exportJsonParameters = new String[exportParameters.length];
+				for (int i = 0; i < exportParameters.length; i++) {
+					exportJsonParameters[i] = getJsonParameter(exportParameters[i]);
+					if (exportJsonParameters[i] == null) {
+						throw new ConfigurationException("smhi",
+								"Unknown parameter '" + exportParameters[i] + "' in export.parameters. Please check your openhab.cfg!");
+					}
+				}
+				File exportDirectory = new File(exportDirectoryString.trim());
+				if (exporter == null || !exporter.getDirectory().equals(exportDirectory)
+						|| !Arrays.equals(exporter.getParameters(), exportParameters) || exporter.getRuns() != exportRuns) {
+					try {
+						exporter = new SmhiForecastExporter(exportDirectory, exportParameters, exportJsonParameters, exportRuns);
+					} catch (IOException e) {
+						throw new ConfigurationException("smhi",
+								"Could not open export directory '" + exportDirectory + "': " + e.getMessage());
+					}
+				}
+			}
+			else {
+				exporter = null;
 			}
 			
+			// The home position may have moved
+			updateItemStates();
+			
+			if (wasConfigured && refreshInterval != previousRefreshInterval) {
+				// Applies from the next tick of the refresh thread
+				logger.debug("SMHI refresh interval changed to " + refreshInterval + " ms");
+			}
 			logger.debug("setProperlyConfigured to true");
 			setProperlyConfigured(true);
+			if (wasConfigured && (homeLatitude != previousLatitude || homeLongitude != previousLongitude)) {
+				refreshHomeItems();
+			}
+			startWarmUp();
 		}
 		else {
 			logger.error("Error in configuration in openhab.cfg! Please check contents of smhi config in openhab.cfg!!! " +
@@ -303,6 +1404,41 @@ public class SmhiBinding extends AbstractActiveBinding<SmhiBindingProvider> impl
 			logger.debug("SMHI binding changed for item: " + itemName);
 		}
 		super.bindingChanged(provider, itemName);
+		updateItemStates();
+	}
+	
+	/**
+	 * Rebuilds the item states, keeping the state of items whose binding is unchanged. Drops the
+	 * cached data of all points no item is bound to any more, and sets the forecast horizon to the
+	 * largest item offset unless a longer one is configured. Tendency items look back from their
+	 * time and need no steps past it.
+	 */
+	private synchronized void updateItemStates() {
+		Map<String, ItemState> previousStates = new HashMap<String, ItemState>();
+		for (ItemState item : itemStates) {
+			previousStates.put(item.itemName, item);
+		}
+		
+		List<ItemState> states = new ArrayList<ItemState>();
+		Set<Geometry> boundPoints = new HashSet<Geometry>();
+		long maxOffset = 0;
+		for (SmhiBindingProvider provider : providers) {
+			for (String itemName : provider.getItemNames()) {
+				ItemState item = new ItemState(itemName, provider, getPoint(provider, itemName));
+				ItemState previous = previousStates.get(itemName);
+				if (previous != null && previous.isSameBinding(item)) {
+					item = previous;
+				}
+				states.add(item);
+				boundPoints.add(item.point);
+				maxOffset = Math.max(maxOffset, item.offset);
+			}
+		}
+		itemStates = states.toArray(new ItemState[states.size()]);
+		horizon = Math.max(configuredHorizon, maxOffset);
+		forecastCache.setBoundKeys(boundPoints);
+		gridLocationMap.keySet().retainAll(boundPoints);
+		fetchedPoints.retainAll(boundPoints);
 	}
 	
 
@@ -313,6 +1449,8 @@ public class SmhiBinding extends AbstractActiveBinding<SmhiBindingProvider> impl
 	public void allBindingsChanged(BindingProvider provider) {
 		logger.debug("SMHI all binding changed");
 		super.allBindingsChanged(provider);
+		updateItemStates();
+		startWarmUp();
 	}
 	
 	/**
@@ -321,7 +1459,20 @@ public class SmhiBinding extends AbstractActiveBinding<SmhiBindingProvider> impl
 	@Override
 	public void activate() {
 		logger.debug("Activating SMHI binding");
+		// The first activation is measured from bundle start, later ones from their own start
+		publishLatencyStart = publishLatencyStart == 0 ? SmhiActivator.getStartTime() : System.nanoTime();
+		firstPublishLatency.set(-1);
+		synchronized (this) {
+			if (pipeline == null) {
+				SmhiPipeline<PointJob, String, double[]> newPipeline = 
+						new SmhiPipeline<PointJob, String, double[]>("SMHI", new PointStages(),
+								FETCH_CONCURRENCY, PIPELINE_QUEUE_CAPACITY);
+				newPipeline.start();
+				pipeline = newPipeline;
+			}
+		}
 		super.activate();
+		startWarmUp();
 	}
 
 	/**
@@ -330,9 +1481,97 @@ public class SmhiBinding extends AbstractActiveBinding<SmhiBindingProvider> impl
 	@Override
 	public void deactivate() {	
 		logger.debug("Deactivating SMHI binding");
+		synchronized (this) {
+			if (pipeline != null) {
+				pipeline.stop();
+				pipeline = null;
+			}
+		}
+		scheduledPoints.clear();
+		pointFlights.cancelAll();
+		// Frees the run histories while the binding is stopped
+		forecastCache.clear();
 		super.deactivate();
 	}
 	
+	/**
+	 * The items of one point that are refreshed together.
+	 */
+	private static class PointJob {
+		private final Geometry point;
+		private final double longitude;
+		private final double latitude;
+		private final List<ItemState> items = new ArrayList<ItemState>();
+		
+		// Grid run the job is computed from, set by the fetch stage
+		private GridRun gridRun;
+		
+		// Compute the items from the cached runs of the point if there are any, instead of fetching it
+		private boolean fromCache;
+		
+		// Oldest last update of the items
+		private long oldestUpdate = Long.MAX_VALUE;
+		
+		// Time after which the point is not fetched any more but carried over, 0 for no limit
+		private long deadline;
+		
+		PointJob(Geometry point) {
+			this.point = point;
+			this.longitude = point.getCoordinates().get(0).get(0);
+			this.latitude = point.getCoordinates().get(0).get(1);
+		}
+		
+		/**
+		 * Makes the items due again after the job was stamped but not fetched.
+		 */
+		void restoreLastUpdate() {
+			for (ItemState item : items) {
+				item.lastUpdate = oldestUpdate;
+			}
+		}
+	}
+	
+	/**
+	 * A bound item with everything a refresh cycle needs resolved up front.
+	 */
+	private static class ItemState {
+		private final String itemName;
+		private final SmhiBindingProvider provider;
+		private final Geometry point;
+		private final String parameter;
+		
+		// Forecast offset from now in milliseconds
+		private final long offset;
+		
+		// Slot of a derived parameter, -1 for other parameters
+		private final int derivedIndex;
+		
+		// True if the item uses the home position
+		private final boolean home;
+		
+		// Fraction of the refresh interval at which the point is due, spread by a hash of the point
+		private final double phase;
+		
+		// Start of the cycle the item was last scheduled in, 0 if never
+		private volatile long lastUpdate;
+		
+		ItemState(String itemName, SmhiBindingProvider provider, Geometry point) {
+			this.itemName = itemName;
+			this.provider = provider;
+			this.point = point;
+			this.parameter = provider.getParameter(itemName);
+			this.offset = TimeUnit.HOURS.toMillis(provider.getOffset(itemName));
+			this.derivedIndex = SmhiDerivedParameters.indexOf(parameter);
+			this.home = provider.getLatitude(itemName) == 0 || provider.getLongitude(itemName) == 0;
+			this.phase = ((point.hashCode() * 0x9E3779B9L) & 0xFFFFFFFFL) / (double) (1L << 32);
+		}
+		
+		boolean isSameBinding(ItemState other) {
+			return provider == other.provider && point.equals(other.point)
+					&& StringUtils.equals(parameter, other.parameter) && offset == other.offset;
+		}
+	}
+	
 	@JsonIgnoreProperties(ignoreUnknown = true)
 	public static class SmhiDataListV2 {
 		
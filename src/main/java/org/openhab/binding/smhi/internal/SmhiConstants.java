@@ -23,6 +23,12 @@ public class SmhiConstants {
 	public static final String PARAMETER_PRECIPITATION_CATEGORY				= "precipitation_category";
 	public static final String PARAMETER_MEAN_PRECIPITATION					= "mean_precipitation";
 	public static final String PARAMETER_MEDIAN_PRECIPITATION				= "median_precipitation";
+	public static final String PARAMETER_DEW_POINT							= "dew_point";
+	public static final String PARAMETER_FEELS_LIKE							= "feels_like";
+	public static final String PARAMETER_WIND_U								= "wind_u";
+	public static final String PARAMETER_WIND_V								= "wind_v";
+	public static final String PARAMETER_SUFFIX_REVISION					= "_revision";
+	public static final String PARAMETER_SUFFIX_TENDENCY					= "_tendency";
 	public static final String PARAMETER_TEMPERATURE_JSON               	= "t";
 	public static final String PARAMETER_THUNDERSTORM_JSON 					= "tstm";
 	public static final String PARAMETER_PRESSURE_JSON						= "msl";
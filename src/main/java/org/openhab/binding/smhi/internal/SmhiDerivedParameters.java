@@ -0,0 +1,103 @@
+package org.openhab.binding.smhi.internal;
+
+
+/**
+ * Weather quantities derived from the SMHI parameters. All derived parameters of a point and
+ * time are computed together from the same four inputs, so items bound to different derived
+ * parameters of one point share a single computation.
+ *
+ * @author agent
+ */
+public class SmhiDerivedParameters {
+
+	// Slots of the derived values
+	public static final int DEW_POINT = 0;
+	public static final int FEELS_LIKE = 1;
+	public static final int WIND_U = 2;
+	public static final int WIND_V = 3;
+	public static final int COUNT = 4;
+
+	// Magnus formula coefficients over water, valid from -45 to 60 C
+	private static final double MAGNUS_B = 17.62;
+	private static final double MAGNUS_C = 243.12;
+
+	// Wind chill applies at or below 10 C and above 4.8 km/h
+	private static final double WIND_CHILL_MAX_TEMPERATURE = 10;
+	private static final double WIND_CHILL_MIN_VELOCITY = 4.8 / 3.6;
+
+	private static final String[] DEW_POINT_INPUTS = {
+		SmhiConstants.PARAMETER_TEMPERATURE, SmhiConstants.PARAMETER_HUMIDITY };
+	private static final String[] FEELS_LIKE_INPUTS = {
+		SmhiConstants.PARAMETER_TEMPERATURE, SmhiConstants.PARAMETER_HUMIDITY, SmhiConstants.PARAMETER_WIND_VELOCITY };
+	private static final String[] WIND_INPUTS = {
+		SmhiConstants.PARAMETER_WIND_VELOCITY, SmhiConstants.PARAMETER_WIND_DIRECTION };
+
+	/**
+	 * @return the slot of a derived item parameter, or -1 if the parameter is not derived.
+	 */
+	public static int indexOf(String parameter) {
+		if (parameter == null) {
+			return -1;
+		}
+		switch (parameter) {
+		case SmhiConstants.PARAMETER_DEW_POINT:
+			return DEW_POINT;
+		case SmhiConstants.PARAMETER_FEELS_LIKE:
+			return FEELS_LIKE;
+		case SmhiConstants.PARAMETER_WIND_U:
+			return WIND_U;
+		case SmhiConstants.PARAMETER_WIND_V:
+			return WIND_V;
+		default:
+			return -1;
+		}
+	}
+
+	/**
+	 * @return the item parameters a derived parameter is computed from, or null if the parameter is not derived.
+	 */
+	public static String[] getInputs(String parameter) {
+		switch (indexOf(parameter)) {
+		case DEW_POINT:
+			return DEW_POINT_INPUTS;
+		case FEELS_LIKE:
+			return FEELS_LIKE_INPUTS;
+		case WIND_U:
+		case WIND_V:
+			return WIND_INPUTS;
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Computes all derived values. A missing (NaN) input only makes the values depending on it NaN.
+	 *
+	 * @param temperature air temperature, C
+	 * @param humidity relative humidity, %
+	 * @param windVelocity wind velocity, m/s
+	 * @param windDirection direction the wind blows from, degrees
+	 * @param values receives the values, indexed by slot
+	 */
+	public static void compute(double temperature, double humidity, double windVelocity, double windDirection, double[] values) {
+		// Saturation ratio in the log form used by both dew point and vapour pressure
+		double gamma = humidity > 0 ? Math.log(humidity / 100) + MAGNUS_B * temperature / (MAGNUS_C + temperature) : Double.NaN;
+		values[DEW_POINT] = MAGNUS_C * gamma / (MAGNUS_B - gamma);
+
+		if (temperature <= WIND_CHILL_MAX_TEMPERATURE && windVelocity > WIND_CHILL_MIN_VELOCITY) {
+			// JAG/TI wind chill, wind velocity in km/h
+			double v016 = Math.pow(windVelocity * 3.6, 0.16);
+			values[FEELS_LIKE] = 13.12 + 0.6215 * temperature - 11.37 * v016 + 0.3965 * temperature * v016;
+		}
+		else {
+			// Steadman apparent temperature without radiation, vapour pressure in hPa
+			double vapourPressure = 6.112 * Math.exp(gamma);
+			values[FEELS_LIKE] = temperature + 0.33 * vapourPressure - 0.70 * windVelocity - 4.00;
+		}
+
+		// Meteorological convention, u positive towards east and v towards north
+		double direction = Math.toRadians(windDirection);
+		values[WIND_U] = -windVelocity * Math.sin(direction);
+		values[WIND_V] = -windVelocity * Math.cos(direction);
+	}
+}
@@ -0,0 +1,138 @@
+package org.openhab.binding.smhi.internal;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+
+/**
+ * Cache of the forecast run histories of the points, bounded by a budget in bytes and in
+ * points. The size of every entry is accounted when it is stored, and entries are evicted in
+ * least recently used order when the cache is over budget: first the points that no item is
+ * bound to any more, then the bound ones.
+ *
+ * @author agent
+ */
+public class SmhiForecastCache<K> {
+
+	// Map entry and key of a cached point
+	static final long ENTRY_OVERHEAD = 256;
+
+	// In access order, the eldest entry is the least recently used
+	private final LinkedHashMap<K, SmhiRunHistory> entries = new LinkedHashMap<K, SmhiRunHistory>(16, 0.75f, true);
+
+	private Set<K> boundKeys = Collections.emptySet();
+
+	private long maxBytes;
+	private int maxPoints;
+	private long sizeInBytes;
+
+	private long evictedCount;
+	private long evictedBoundCount;
+
+	/**
+	 * @param maxBytes budget in bytes, 0 for no limit
+	 * @param maxPoints budget in points, 0 for no limit
+	 */
+	public SmhiForecastCache(long maxBytes, int maxPoints) {
+		setBudget(maxBytes, maxPoints);
+	}
+
+	public synchronized void setBudget(long maxBytes, int maxPoints) {
+		this.maxBytes = Math.max(0, maxBytes);
+		this.maxPoints = Math.max(0, maxPoints);
+		evict();
+	}
+
+	/**
+	 * @return the history of the key, or null if it is not cached.
+	 */
+	public synchronized SmhiRunHistory get(K key) {
+		return entries.get(key);
+	}
+
+	/**
+	 * Stores the history of a key, evicting other entries when the cache gets over budget.
+	 */
+	public synchronized void put(K key, SmhiRunHistory history) {
+		SmhiRunHistory previous = entries.put(key, history);
+		if (previous != null) {
+			sizeInBytes -= getSize(previous);
+		}
+		sizeInBytes += getSize(history);
+		evict();
+	}
+
+	/**
+	 * Sets the keys items are bound to and drops all other entries.
+	 */
+	public synchronized void setBoundKeys(Set<K> keys) {
+		boundKeys = new HashSet<K>(keys);
+		Iterator<Map.Entry<K, SmhiRunHistory>> iterator = entries.entrySet().iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<K, SmhiRunHistory> entry = iterator.next();
+			if (!boundKeys.contains(entry.getKey())) {
+				sizeInBytes -= getSize(entry.getValue());
+				iterator.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		sizeInBytes = 0;
+	}
+
+	public synchronized int getPointCount() {
+		return entries.size();
+	}
+
+	public synchronized long getSizeInBytes() {
+		return sizeInBytes;
+	}
+
+	/**
+	 * Returns the statistics collected since the last call and resets them.
+	 */
+	public synchronized String drainStatistics() {
+		String statistics = "points=" + entries.size()
+				+ ", size=" + sizeInBytes + " bytes"
+				+ ", evicted=" + evictedCount
+				+ ", evicted bound=" + evictedBoundCount;
+		evictedCount = 0;
+		evictedBoundCount = 0;
+		return statistics;
+	}
+
+	private void evict() {
+		// Orphaned points first, least recently used first
+		Iterator<Map.Entry<K, SmhiRunHistory>> iterator = entries.entrySet().iterator();
+		while (isOverBudget() && iterator.hasNext()) {
+			Map.Entry<K, SmhiRunHistory> entry = iterator.next();
+			if (!boundKeys.contains(entry.getKey())) {
+				sizeInBytes -= getSize(entry.getValue());
+				iterator.remove();
+				evictedCount++;
+			}
+		}
+		iterator = entries.entrySet().iterator();
+		while (isOverBudget() && iterator.hasNext()) {
+			Map.Entry<K, SmhiRunHistory> entry = iterator.next();
+			sizeInBytes -= getSize(entry.getValue());
+			iterator.remove();
+			evictedCount++;
+			evictedBoundCount++;
+		}
+	}
+
+	private boolean isOverBudget() {
+		return (maxBytes > 0 && sizeInBytes > maxBytes) || (maxPoints > 0 && entries.size() > maxPoints);
+	}
+
+	private static long getSize(SmhiRunHistory history) {
+		return ENTRY_OVERHEAD + history.getSizeInBytes();
+	}
+}
@@ -0,0 +1,189 @@
+package org.openhab.binding.smhi.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+import org.openhab.binding.smhi.internal.SmhiBinding.Parameter;
+import org.openhab.binding.smhi.internal.SmhiBinding.SmhiDataListV2;
+import org.openhab.binding.smhi.internal.SmhiBinding.WeatherDataV2;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Exports the whole forecast series of a point as one CSV file per forecast run, with a row
+ * per time step stamped with its validTime and a column per exported parameter. Files are
+ * written atomically, so readers never see a partial run, and only the latest runs of each point
+ * are kept.
+ *
+ * @author agent
+ */
+public class SmhiForecastExporter {
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(SmhiForecastExporter.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String SUFFIX = ".csv";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final File directory;
+
+	// Item parameter names, used as column headers
+	private final String[] parameters;
+
+	// SMHI JSON names of the parameters
+	private final String[] jsonParameters;
+
+	// Number of runs kept per point, 0 keeps all
+	private final int runs;
+
+	/**
+	 * @param directory directory the files are written to
+	 * @param parameters item parameter names of the columns
+	 * @param jsonParameters SMHI JSON names of the columns
+	 * @param runs number of runs kept per point, older files are deleted, 0 keeps all
+	 */
+	public SmhiForecastExporter(File directory, String[] parameters, String[] jsonParameters, int runs) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create export directory '" + directory + "'");
+		}
+		this.directory = directory;
+		this.parameters = parameters;
+		this.jsonParameters = jsonParameters;
+		this.runs = Math.max(0, runs);
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	public String[] getParameters() {
+		return parameters;
+	}
+
+	public int getRuns() {
+		return runs;
+	}
+
+	/**
+	 * @return true if the run approved at a time has been exported for a point.
+	 */
+	public boolean isExported(double latitude, double longitude, long approvedTime) {
+		return getFile(latitude, longitude, approvedTime).exists();
+	}
+
+	/**
+	 * Writes the series of a run, unless it has been exported already, and deletes the runs of
+	 * the point that are no longer kept.
+	 *
+	 * @return true if a file was written.
+	 */
+	public boolean export(double latitude, double longitude, SmhiDataListV2 dataList) throws IOException {
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+		format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		File file = getFile(latitude, longitude, dataList.getApprovedTime().getTime());
+		if (file.exists()) {
+			return false;
+		}
+
+		File tmp = File.createTempFile(file.getName() + "-", TMP_SUFFIX, directory);
+		try {
+			Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), UTF8);
+			try {
+				writer.write("validTime");
+				for (String parameter : parameters) {
+					writer.write(',');
+					writer.write(parameter);
+				}
+				writer.write('\n');
+				for (WeatherDataV2 weatherData : dataList.getTimeSeries()) {
+					writeRow(writer, format.format(weatherData.getValidTime()), weatherData.getParameters());
+				}
+			} finally {
+				writer.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			if (tmp.exists()) {
+				SmhiGridStore.deleteQuietly(tmp);
+			}
+		}
+		logger.debug("Exported SMHI run approved at " + format.format(dataList.getApprovedTime()) + " for "
+				+ latitude + ":" + longitude + " to " + file);
+		deleteOlderRuns(latitude, longitude);
+		return true;
+	}
+
+	private File getFile(double latitude, double longitude, long approvedTime) {
+		SimpleDateFormat fileFormat = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+		fileFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return new File(directory, getPrefix(latitude, longitude) + fileFormat.format(approvedTime) + SUFFIX);
+	}
+
+	private static String getPrefix(double latitude, double longitude) {
+		return latitude + "_" + longitude + "-";
+	}
+
+	/**
+	 * Deletes all but the latest runs of a point. The approved time in the file names sorts in time order.
+	 */
+	private void deleteOlderRuns(double latitude, double longitude) {
+		if (runs == 0) {
+			return;
+		}
+		String prefix = getPrefix(latitude, longitude);
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		String[] names = new String[files.length];
+		int count = 0;
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(prefix) && name.endsWith(SUFFIX)) {
+				names[count++] = name;
+			}
+		}
+		Arrays.sort(names, 0, count);
+		for (int i = 0; i < count - runs; i++) {
+			SmhiGridStore.deleteQuietly(new File(directory, names[i]));
+		}
+	}
+
+	private void writeRow(Writer writer, String validTime, List<Parameter> stepParameters) throws IOException {
+		writer.write(validTime);
+		for (String jsonParameter : jsonParameters) {
+			writer.write(',');
+			Double value = getValue(stepParameters, jsonParameter);
+			if (value != null) {
+				writer.write(String.valueOf(value));
+			}
+		}
+		writer.write('\n');
+	}
+
+	private static Double getValue(List<Parameter> stepParameters, String jsonParameter) {
+		if (stepParameters == null) {
+			return null;
+		}
+		for (Parameter parameter : stepParameters) {
+			if (jsonParameter.equals(parameter.getName()) && parameter.getValues() != null && !parameter.getValues().isEmpty()) {
+				return parameter.getValues().get(0);
+			}
+		}
+		return null;
+	}
+}
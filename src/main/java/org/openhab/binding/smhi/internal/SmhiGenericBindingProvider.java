@@ -50,22 +50,46 @@ public class SmhiGenericBindingProvider extends AbstractGenericBindingProvider i
 			else {
 				config.latitude =  Double.valueOf(configParts[0]);
 				config.longitude = Double.valueOf(configParts[1]);
-				config.parameter = String.valueOf(configParts[2]).toLowerCase();
+				parseParameter(config, String.valueOf(configParts[2]).toLowerCase());
 			}
 		}
 		else {
-			config.parameter = bindingConfig.toLowerCase();
+			parseParameter(config, bindingConfig.toLowerCase());
 		}
 		
 		addBindingConfig(item, config);
 	}
 	
+	/**
+	 * Parses "parameter" or "parameter+hours", where hours is the forecast offset from now.
+	 */
+	private void parseParameter(SmhiBindingConfig config, String parameter) throws BindingConfigParseException {
+		String[] parameterParts = parameter.trim().split("\\+");
+		if (parameterParts.length > 2) {
+			throw new BindingConfigParseException("Smhi binding parameter must be of the form parameter or parameter+hours");
+		}
+		config.parameter = parameterParts[0].trim();
+		if (parameterParts.length == 2) {
+			try {
+				config.offset = Integer.parseInt(parameterParts[1].trim());
+			} catch (NumberFormatException e) {
+				throw new BindingConfigParseException("Smhi binding forecast offset must be a number of hours");
+			}
+		}
+	}
+	
 	@Override
 	public String getParameter(String itemName) {
 		SmhiBindingConfig config = (SmhiBindingConfig) bindingConfigs.get(itemName);
 		return config != null ? config.parameter : null;
 	}
 	
+	@Override
+	public int getOffset(String itemName) {
+		SmhiBindingConfig config = (SmhiBindingConfig) bindingConfigs.get(itemName);
+		return config != null ? config.offset : 0;
+	}
+	
 	@Override
 	public double getLongitude(String itemName) {
 		SmhiBindingConfig config = (SmhiBindingConfig) bindingConfigs.get(itemName);
@@ -89,5 +113,8 @@ public class SmhiGenericBindingProvider extends AbstractGenericBindingProvider i
 		/** The data to fetch. Valid parameters can be found in {@link org.openhab.binding.smhi.internal.SmhiConstants }*/
 		public String parameter;
 		
+		/** Forecast offset from now in hours. */
+		public int offset = 0;
+		
 	}
 }
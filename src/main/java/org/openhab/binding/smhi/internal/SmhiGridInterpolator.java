@@ -0,0 +1,239 @@
+package org.openhab.binding.smhi.internal;
+
+import org.openhab.binding.smhi.internal.SmhiGridStore.GridRun;
+
+
+/**
+ * Computes values for arbitrary coordinates from a cached {@link GridRun} by bilinear
+ * interpolation of the surrounding grid cell. The SMHI grid is curvilinear in longitude/latitude,
+ * so the cell containing a coordinate is found around its nearest grid point and the position
+ * within the cell is solved by inverting the bilinear mapping. A {@link Location} only depends
+ * on the grid geometry and is resolved once per coordinate and run.
+ *
+ * Wind direction is interpolated as a (u, v) vector together with wind velocity, categorical
+ * parameters take the value of the nearest corner.
+ *
+ * @author agent
+ */
+public class SmhiGridInterpolator {
+
+	// Tolerance when deciding whether a coordinate lies inside a grid cell
+	private static final double CELL_EPSILON = 1e-6;
+
+	private static final int NEWTON_ITERATIONS = 20;
+
+	private SmhiGridInterpolator() {
+	}
+
+	/**
+	 * Resolves the interpolation weights of a coordinate in the given run.
+	 *
+	 * @return the location, or null if the coordinate is outside the grid.
+	 */
+	public static Location locate(GridRun run, double longitude, double latitude) {
+		int pointCount = run.getPointCount();
+		if (pointCount == 0) {
+			return null;
+		}
+		double cosLatitude = Math.cos(Math.toRadians(latitude));
+
+		// Nearest grid point
+		int nearest = 0;
+		double nearestDistance = Double.MAX_VALUE;
+		for (int point = 0; point < pointCount; point++) {
+			double dx = (run.getLongitude(point) - longitude) * cosLatitude;
+			double dy = run.getLatitude(point) - latitude;
+			double distance = dx * dx + dy * dy;
+			if (distance < nearestDistance) {
+				nearestDistance = distance;
+				nearest = point;
+			}
+		}
+
+		int nx = run.getNx();
+		int ny = run.getNy();
+		int i = nearest % nx;
+		int j = nearest / nx;
+
+		// Try the four cells sharing the nearest grid point
+		double[] st = new double[2];
+		for (int cj = j - 1; cj <= j; cj++) {
+			for (int ci = i - 1; ci <= i; ci++) {
+				if (ci < 0 || cj < 0 || ci + 1 >= nx || cj + 1 >= ny) {
+					continue;
+				}
+				int p00 = cj * nx + ci;
+				int p10 = p00 + 1;
+				int p01 = p00 + nx;
+				int p11 = p01 + 1;
+				if (solve(run, p00, p10, p01, p11, longitude, latitude, cosLatitude, st)) {
+					double s = st[0];
+					double t = st[1];
+					return new Location(run, p00, p10, p01, p11,
+							(1 - s) * (1 - t), s * (1 - t), (1 - s) * t, s * t);
+				}
+			}
+		}
+
+		// Not inside any cell, accept the nearest point if it is less than one grid spacing away
+		if (nx > 1) {
+			int neighbour = i + 1 < nx ? nearest + 1 : nearest - 1;
+			double dx = (run.getLongitude(neighbour) - run.getLongitude(nearest)) * cosLatitude;
+			double dy = run.getLatitude(neighbour) - run.getLatitude(nearest);
+			if (nearestDistance > dx * dx + dy * dy) {
+				return null;
+			}
+		}
+		return new Location(run, nearest, nearest, nearest, nearest, 1, 0, 0, 0);
+	}
+
+	/**
+	 * Inverts the bilinear mapping of the cell (p00, p10, p01, p11) with Newton iterations.
+	 *
+	 * @return true if the coordinate lies inside the cell, st then holds its cell coordinates.
+	 */
+	private static boolean solve(GridRun run, int p00, int p10, int p01, int p11,
+			double longitude, double latitude, double cosLatitude, double[] st) {
+		double x00 = run.getLongitude(p00) * cosLatitude, y00 = run.getLatitude(p00);
+		double x10 = run.getLongitude(p10) * cosLatitude, y10 = run.getLatitude(p10);
+		double x01 = run.getLongitude(p01) * cosLatitude, y01 = run.getLatitude(p01);
+		double x11 = run.getLongitude(p11) * cosLatitude, y11 = run.getLatitude(p11);
+		double x = longitude * cosLatitude;
+		double y = latitude;
+
+		double s = 0.5;
+		double t = 0.5;
+		for (int iteration = 0; iteration < NEWTON_ITERATIONS; iteration++) {
+			double fx = (1 - s) * (1 - t) * x00 + s * (1 - t) * x10 + (1 - s) * t * x01 + s * t * x11 - x;
+			double fy = (1 - s) * (1 - t) * y00 + s * (1 - t) * y10 + (1 - s) * t * y01 + s * t * y11 - y;
+			double dxs = (1 - t) * (x10 - x00) + t * (x11 - x01);
+			double dys = (1 - t) * (y10 - y00) + t * (y11 - y01);
+			double dxt = (1 - s) * (x01 - x00) + s * (x11 - x10);
+			double dyt = (1 - s) * (y01 - y00) + s * (y11 - y10);
+			double determinant = dxs * dyt - dxt * dys;
+			if (determinant == 0) {
+				return false;
+			}
+			double ds = (fx * dyt - fy * dxt) / determinant;
+			double dt = (fy * dxs - fx * dys) / determinant;
+			s -= ds;
+			t -= dt;
+			if (Math.abs(ds) < 1e-12 && Math.abs(dt) < 1e-12) {
+				break;
+			}
+		}
+		if (s < -CELL_EPSILON || s > 1 + CELL_EPSILON || t < -CELL_EPSILON || t > 1 + CELL_EPSILON) {
+			return false;
+		}
+		st[0] = Math.min(1, Math.max(0, s));
+		st[1] = Math.min(1, Math.max(0, t));
+		return true;
+	}
+
+	/**
+	 * @return the first step that is valid at or after the given time, or the last step.
+	 */
+	public static int findStep(GridRun run, long time) {
+		int last = run.getStepCount() - 1;
+		for (int step = 0; step < last; step++) {
+			if (run.getValidTime(step) >= time) {
+				return step;
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * Bilinear interpolation of a continuous parameter.
+	 */
+	public static double interpolate(Location location, int parameterIndex, int step) {
+		GridRun run = location.run;
+		return location.w00 * run.getValue(parameterIndex, step, location.p00)
+				+ location.w10 * run.getValue(parameterIndex, step, location.p10)
+				+ location.w01 * run.getValue(parameterIndex, step, location.p01)
+				+ location.w11 * run.getValue(parameterIndex, step, location.p11);
+	}
+
+	/**
+	 * Value of a categorical parameter at the corner with the largest weight.
+	 */
+	public static double nearest(Location location, int parameterIndex, int step) {
+		return location.run.getValue(parameterIndex, step, location.getNearestPoint());
+	}
+
+	/**
+	 * Interpolates wind direction as a vector weighted by wind velocity.
+	 *
+	 * @return the direction the wind is coming from in degrees, 0-360.
+	 */
+	public static double interpolateDirection(Location location, int directionIndex, int velocityIndex, int step) {
+		GridRun run = location.run;
+		double u = location.w00 * windU(run, directionIndex, velocityIndex, step, location.p00)
+				+ location.w10 * windU(run, directionIndex, velocityIndex, step, location.p10)
+				+ location.w01 * windU(run, directionIndex, velocityIndex, step, location.p01)
+				+ location.w11 * windU(run, directionIndex, velocityIndex, step, location.p11);
+		double v = location.w00 * windV(run, directionIndex, velocityIndex, step, location.p00)
+				+ location.w10 * windV(run, directionIndex, velocityIndex, step, location.p10)
+				+ location.w01 * windV(run, directionIndex, velocityIndex, step, location.p01)
+				+ location.w11 * windV(run, directionIndex, velocityIndex, step, location.p11);
+		if (u == 0 && v == 0) {
+			return nearest(location, directionIndex, step);
+		}
+		double direction = Math.toDegrees(Math.atan2(-u, -v));
+		return direction < 0 ? direction + 360 : direction;
+	}
+
+	private static double windU(GridRun run, int directionIndex, int velocityIndex, int step, int point) {
+		return -run.getValue(velocityIndex, step, point)
+				* Math.sin(Math.toRadians(run.getValue(directionIndex, step, point)));
+	}
+
+	private static double windV(GridRun run, int directionIndex, int velocityIndex, int step, int point) {
+		return -run.getValue(velocityIndex, step, point)
+				* Math.cos(Math.toRadians(run.getValue(directionIndex, step, point)));
+	}
+
+	/**
+	 * The corners and bilinear weights of a coordinate within one grid run.
+	 */
+	public static class Location {
+
+		private final GridRun run;
+		private final int p00, p10, p01, p11;
+		private final double w00, w10, w01, w11;
+
+		Location(GridRun run, int p00, int p10, int p01, int p11,
+				double w00, double w10, double w01, double w11) {
+			this.run = run;
+			this.p00 = p00;
+			this.p10 = p10;
+			this.p01 = p01;
+			this.p11 = p11;
+			this.w00 = w00;
+			this.w10 = w10;
+			this.w01 = w01;
+			this.w11 = w11;
+		}
+
+		public GridRun getRun() {
+			return run;
+		}
+
+		public int getNearestPoint() {
+			int point = p00;
+			double weight = w00;
+			if (w10 > weight) {
+				point = p10;
+				weight = w10;
+			}
+			if (w01 > weight) {
+				point = p01;
+				weight = w01;
+			}
+			if (w11 > weight) {
+				point = p11;
+			}
+			return point;
+		}
+	}
+}
@@ -0,0 +1,306 @@
+package org.openhab.binding.smhi.internal;
+
+import java.io.IOException;
+import java.nio.channels.FileLock;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.codehaus.jackson.annotate.JsonProperty;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openhab.binding.smhi.internal.SmhiBinding.Geometry;
+import org.openhab.binding.smhi.internal.SmhiBinding.Parameter;
+import org.openhab.binding.smhi.internal.SmhiBinding.SmhiDataListV2;
+import org.openhab.binding.smhi.internal.SmhiBinding.WeatherDataV2;
+import org.openhab.binding.smhi.internal.SmhiGridStore.GridRun;
+import org.openhab.binding.smhi.internal.SmhiGridStore.GridRunWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Downloads whole-grid forecast fields from the SMHI multipoint API into a {@link SmhiGridStore}.
+ * A run is only downloaded once per approvedTime, and only for the parameters that are needed.
+ * A download is aborted when a response belongs to a newer run, so a stored run never mixes two.
+ *
+ * @author agent
+ */
+public class SmhiGridLoader {
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(SmhiGridLoader.class);
+
+	protected static final String BASE_URL = "http://opendata-download-metfcst.smhi.se/api/category/pmp2g/version/2/";
+
+	// Coordinates of all grid points
+	protected static final String MULTIPOINT_URL = BASE_URL + "geotype/multipoint.json";
+
+	// Valid times of the latest run
+	protected static final String VALID_TIME_URL = BASE_URL + "geotype/multipoint/validtime.json";
+
+	// One parameter at one valid time for all grid points
+	protected static final String DATA_URL = BASE_URL + "geotype/multipoint/validtime/%s/parameter/%s/leveltype/%s/level/%d/data.json";
+
+	private static final ObjectMapper JSON = new ObjectMapper();
+
+	// Rate limiter key shared by all grid requests, so a grid download takes turns with point queries
+	private static final String RATE_LIMITER_KEY = "grid";
+
+	private final SmhiGridStore store;
+
+	private final SmhiRateLimiter rateLimiter;
+
+	private final SmhiLatencyTracker tracker;
+
+	// Serializes updates, held for a whole grid download
+	private final ReentrantLock updateLock = new ReentrantLock();
+
+	// Approved time of the last run loaded with all of its time steps, a longer horizon needs no reload
+	private long completeApprovedTime;
+
+	public SmhiGridLoader(SmhiGridStore store, SmhiRateLimiter rateLimiter, SmhiLatencyTracker tracker) {
+		this.store = store;
+		this.rateLimiter = rateLimiter;
+		this.tracker = tracker;
+	}
+
+	/**
+	 * Makes sure the store holds the given run with all of the given parameters. When the
+	 * store directory is shared with other openHAB instances, a run loaded by another
+	 * instance is mapped instead of being downloaded again.
+	 *
+	 * @param approved approvedTime and referenceTime of the latest SMHI run
+	 * @param parameters SMHI JSON parameter names
+	 * @param horizonTime time steps are loaded up to the first one at or after this time
+	 * @return true if the store is up to date.
+	 */
+	public boolean update(SmhiDataListV2 approved, String[] parameters, long horizonTime) {
+		updateLock.lock();
+		try {
+			return updateLocked(approved, parameters, horizonTime);
+		} finally {
+			updateLock.unlock();
+		}
+	}
+
+	private boolean updateLocked(SmhiDataListV2 approved, String[] parameters, long horizonTime) {
+		long approvedTime = approved.getApprovedTime().getTime();
+		if (isUpToDate(approvedTime, parameters, horizonTime)) {
+			return true;
+		}
+		if (parameters.length == 0) {
+			return false;
+		}
+		try {
+			store.open();
+			if (isUpToDate(approvedTime, parameters, horizonTime)) {
+				return true;
+			}
+			FileLock lock = store.tryLock();
+			if (lock == null) {
+				logger.debug("SMHI grid run approved at " + approvedTime + " is being loaded by another instance");
+				return false;
+			}
+			try {
+				store.open();
+				if (isUpToDate(approvedTime, parameters, horizonTime)) {
+					return true;
+				}
+				return load(approvedTime, approved.getReferenceTime().getTime(), parameters, horizonTime);
+			} finally {
+				lock.channel().close();
+			}
+		} catch (IOException e) {
+			logger.error("Could not store SMHI grid run: " + e.toString());
+			return false;
+		}
+	}
+
+	private boolean isUpToDate(long approvedTime, String[] parameters, long horizonTime) {
+		GridRun run = store.getRun();
+		return run != null && run.getApprovedTime() >= approvedTime && containsAll(run, parameters)
+				&& (run.getApprovedTime() == completeApprovedTime || covers(run, horizonTime));
+	}
+
+	private boolean load(long approvedTime, long referenceTime, String[] parameters, long horizonTime) throws IOException {
+		logger.debug("Loading SMHI grid run approved at " + approvedTime);
+
+		Geometry multiPoint = query(MULTIPOINT_URL, Geometry.class);
+		ValidTimes validTimeList = query(VALID_TIME_URL, ValidTimes.class);
+		if (multiPoint == null || multiPoint.getCoordinates() == null
+				|| validTimeList == null || validTimeList.getValidTime() == null) {
+			logger.error("SMHI grid query failed!");
+			return false;
+		}
+
+		List<List<Double>> coordinates = multiPoint.getCoordinates();
+		int pointCount = coordinates.size();
+		int nx = inferRowLength(coordinates);
+		int ny = pointCount / nx;
+
+		// Steps past the horizon are not downloaded
+		List<Date> validTimeDates = validTimeList.getValidTime();
+		int stepCount = 0;
+		while (stepCount < validTimeDates.size()
+				&& (stepCount == 0 || validTimeDates.get(stepCount - 1).getTime() < horizonTime)) {
+			stepCount++;
+		}
+		long[] validTimes = new long[stepCount];
+		for (int step = 0; step < validTimes.length; step++) {
+			validTimes[step] = validTimeDates.get(step).getTime();
+		}
+
+		GridRunWriter writer = store.createWriter(approvedTime, referenceTime, nx, ny, parameters, validTimes);
+		boolean committed = false;
+		try {
+			for (int point = 0; point < pointCount; point++) {
+				List<Double> coordinate = coordinates.get(point);
+				writer.setCoordinate(point, coordinate.get(0).floatValue(), coordinate.get(1).floatValue());
+			}
+
+			SimpleDateFormat format = new SimpleDateFormat("yyyyMMdd'T'HHmmss'Z'");
+			format.setTimeZone(TimeZone.getTimeZone("UTC"));
+			for (int step = 0; step < validTimes.length; step++) {
+				String validTime = format.format(validTimeDates.get(step));
+				for (int parameterIndex = 0; parameterIndex < parameters.length; parameterIndex++) {
+					String parameter = parameters[parameterIndex];
+					String url = String.format(DATA_URL, validTime, parameter, getLevelType(parameter), getLevel(parameter));
+					SmhiDataListV2 dataList = query(url, SmhiDataListV2.class);
+					if (dataList != null && dataList.getApprovedTime() != null
+							&& dataList.getApprovedTime().getTime() != approvedTime) {
+						// Don't mix two runs, the next run check loads the new one
+						logger.debug("SMHI approved a new run while the grid run approved at " + approvedTime
+								+ " was loading, loading aborted");
+						return false;
+					}
+					List<Double> values = getValues(dataList, parameter);
+					if (values == null || values.size() != pointCount) {
+						logger.error("SMHI grid query for parameter '" + parameter + "' at " + validTime + " failed!");
+						return false;
+					}
+					for (int point = 0; point < pointCount; point++) {
+						writer.setValue(parameterIndex, step, point, values.get(point).floatValue());
+					}
+				}
+			}
+			writer.commit();
+			committed = true;
+			if (stepCount == validTimeDates.size()) {
+				completeApprovedTime = approvedTime;
+			}
+		} finally {
+			if (!committed) {
+				writer.abort();
+			}
+		}
+		logger.debug("Loaded SMHI grid run approved at " + approvedTime + ", " + pointCount + " points ("
+				+ nx + "x" + ny + "), " + validTimes.length + " steps");
+		return true;
+	}
+
+	private <T> T query(String url, Class<T> type) {
+		String json = null;
+		try {
+			rateLimiter.acquire(RATE_LIMITER_KEY, false);
+			json = tracker.executeUrl(url);
+			logger.debug("Quering SMHI API: " + url);
+			return json != null ? JSON.readValue(json, type) : null;
+		} catch (InterruptedException e) {
+			logger.debug("Interrupted while waiting to query SMHI API: " + url);
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (final Exception e) {
+			logger.error("Could not parse JSON from URL '" + url + "' Exception trace:'" + e.toString());
+			return null;
+		}
+	}
+
+	private static List<Double> getValues(SmhiDataListV2 dataList, String parameter) {
+		if (dataList == null || dataList.getTimeSeries() == null || dataList.getTimeSeries().isEmpty()) {
+			return null;
+		}
+		WeatherDataV2 weatherData = dataList.getTimeSeries().get(0);
+		if (weatherData.getParameters() == null) {
+			return null;
+		}
+		for (Parameter candidate : weatherData.getParameters()) {
+			if (parameter.equals(candidate.getName())) {
+				return candidate.getValues();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * The multipoint coordinates are listed row by row with increasing longitude, a row
+	 * ends where the longitude decreases again. Falls back to a single row if the
+	 * coordinates don't form a rectangular grid.
+	 */
+	static int inferRowLength(List<List<Double>> coordinates) {
+		int pointCount = coordinates.size();
+		for (int point = 1; point < pointCount; point++) {
+			if (coordinates.get(point).get(0) < coordinates.get(point - 1).get(0)) {
+				if (pointCount % point == 0) {
+					return point;
+				}
+				break;
+			}
+		}
+		return Math.max(pointCount, 1);
+	}
+
+	/**
+	 * @return true if the run has a time step at or after the time.
+	 */
+	private static boolean covers(GridRun run, long time) {
+		return run.getStepCount() > 0 && run.getValidTime(run.getStepCount() - 1) >= time;
+	}
+
+	private static boolean containsAll(GridRun run, String[] parameters) {
+		for (String parameter : parameters) {
+			if (run.getParameterIndex(parameter) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	static String getLevelType(String parameter) {
+		return SmhiConstants.PARAMETER_PRESSURE_JSON.equals(parameter) ? "hmsl" : "hl";
+	}
+
+	static int getLevel(String parameter) {
+		switch (parameter) {
+		case SmhiConstants.PARAMETER_TEMPERATURE_JSON:
+		case SmhiConstants.PARAMETER_VISIBILITY_JSON:
+		case SmhiConstants.PARAMETER_HUMIDITY_JSON:
+			return 2;
+		case SmhiConstants.PARAMETER_WIND_DIRECTION_JSON:
+		case SmhiConstants.PARAMETER_WIND_VELOCITY_JSON:
+		case SmhiConstants.PARAMETER_WIND_GUST_JSON:
+			return 10;
+		default:
+			return 0;
+		}
+	}
+
+	@JsonIgnoreProperties(ignoreUnknown = true)
+	public static class ValidTimes {
+
+		private List<Date> validTime;
+
+		/**
+		 * validTime: [
+		 *		"2016-01-21T15:00:00Z",
+		 *		"2016-01-21T16:00:00Z"
+		 * ]
+		 */
+		@JsonProperty("validTime")
+		public List<Date> getValidTime() {
+			return this.validTime;
+		}
+	}
+}
@@ -0,0 +1,513 @@
+package org.openhab.binding.smhi.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Off-heap storage of whole-grid forecast fields. Every forecast run (identified by its
+ * SMHI approvedTime) is kept in one memory-mapped file, laid out as float32 columns
+ * per parameter and time step:
+ *
+ * <pre>
+ * header | parameter names | valid times | longitudes | latitudes | values[parameter][step][point]
+ * </pre>
+ *
+ * A new run is written to a temporary file and atomically renamed into place before the
+ * current run is swapped, so readers always see either the old or the new run in full.
+ * Values are read with absolute gets on the mapped buffers, i.e. without any heap allocation.
+ * The last committed run is picked up again by {@link #open()} after a restart.
+ *
+ * @author agent
+ */
+public class SmhiGridStore {
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(SmhiGridStore.class);
+
+	// "SMHG"
+	private static final int MAGIC = 0x534D4847;
+
+	private static final int VERSION = 1;
+
+	// Parameter names are stored as fixed size ASCII fields
+	private static final int NAME_LENGTH = 16;
+
+	// magic, version, approvedTime, referenceTime, nx, ny, parameters, steps
+	private static final int FIXED_HEADER_LENGTH = 4 + 4 + 8 + 8 + 4 + 4 + 4 + 4;
+
+	private static final String RUN_PREFIX = "run-";
+	private static final String RUN_SUFFIX = ".grid";
+	private static final String TMP_SUFFIX = ".tmp";
+	private static final String LOCK_FILE = "grid.lock";
+
+	// Temporary files older than this are left over from interrupted writes
+	private static final long TMP_MAX_AGE = 3600000L;
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final File directory;
+
+	// The run currently served to readers
+	private volatile GridRun currentRun;
+
+	// Identity of the file the current run is mapped from
+	private Object currentRunFile;
+
+	public SmhiGridStore(File directory) {
+		this.directory = directory;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Maps the latest committed run in the store directory, if any, and removes
+	 * leftovers from interrupted writes and runs that have been superseded. May be called
+	 * again to pick up a run committed by another process sharing the directory, including
+	 * the current run rewritten with more parameters.
+	 */
+	public synchronized void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create grid directory '" + directory + "'");
+		}
+		File latest = null;
+		long latestApprovedTime = Long.MIN_VALUE;
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(TMP_SUFFIX)) {
+					// Recent temporary files may be written by another process right now
+					if (System.currentTimeMillis() - file.lastModified() > TMP_MAX_AGE) {
+						deleteQuietly(file);
+					}
+				}
+				else if (name.startsWith(RUN_PREFIX) && name.endsWith(RUN_SUFFIX)) {
+					long approvedTime = parseApprovedTime(name);
+					if (approvedTime > latestApprovedTime) {
+						latestApprovedTime = approvedTime;
+						latest = file;
+					}
+				}
+			}
+		}
+		GridRun run = currentRun;
+		Object identity = latest != null ? getIdentity(latest) : null;
+		if (latest != null && (run == null || latestApprovedTime > run.getApprovedTime()
+				|| (latestApprovedTime == run.getApprovedTime() && (identity == null || !identity.equals(currentRunFile))))) {
+			try {
+				currentRun = GridRun.map(latest);
+				currentRunFile = identity;
+				logger.debug("Mapped SMHI grid run approved at " + latestApprovedTime + " from " + latest);
+			} catch (IOException e) {
+				logger.warn("Could not map SMHI grid run '" + latest + "', discarding it: " + e.toString());
+				deleteQuietly(latest);
+			}
+		}
+		deleteOlderRuns(latestApprovedTime);
+	}
+
+	/**
+	 * Tries to take the lock that serializes loading of runs between processes sharing
+	 * the store directory.
+	 *
+	 * @return the lock, or null if another process holds it. The lock is released by
+	 * closing its {@link FileLock#channel()}.
+	 */
+	public FileLock tryLock() throws IOException {
+		final RandomAccessFile lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+		try {
+			FileLock lock = lockFile.getChannel().tryLock();
+			if (lock == null) {
+				lockFile.close();
+			}
+			return lock;
+		} catch (IOException e) {
+			lockFile.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the run currently served, or null if no run has been committed yet.
+	 */
+	public GridRun getRun() {
+		return currentRun;
+	}
+
+	/**
+	 * @return the approvedTime of the current run, or 0 if there is none.
+	 */
+	public long getApprovedTime() {
+		GridRun run = currentRun;
+		return run != null ? run.getApprovedTime() : 0;
+	}
+
+	/**
+	 * Creates a writer for a new run. The run becomes visible to readers when
+	 * {@link GridRunWriter#commit()} is called.
+	 */
+	public GridRunWriter createWriter(long approvedTime, long referenceTime, int nx, int ny,
+			String[] parameters, long[] validTimes) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create grid directory '" + directory + "'");
+		}
+		File target = new File(directory, RUN_PREFIX + approvedTime + RUN_SUFFIX);
+		File tmp = File.createTempFile(RUN_PREFIX + approvedTime + "-", TMP_SUFFIX, directory);
+		return new GridRunWriter(this, tmp, target, approvedTime, referenceTime, nx, ny, parameters, validTimes);
+	}
+
+	/**
+	 * Moves a completely written run file into place and swaps it in as the current run.
+	 */
+	synchronized void commit(File tmp, File target, long approvedTime) throws IOException {
+		GridRun run = currentRun;
+		if (run != null && run.getApprovedTime() > approvedTime) {
+			deleteQuietly(tmp);
+			logger.debug("Discarding SMHI grid run approved at " + approvedTime + ", a newer run is already stored");
+			return;
+		}
+		Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		Object identity = getIdentity(target);
+		currentRun = GridRun.map(target);
+		currentRunFile = identity;
+		deleteOlderRuns(approvedTime);
+		logger.debug("Swapped in SMHI grid run approved at " + approvedTime);
+	}
+
+	private void deleteOlderRuns(long approvedTime) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(RUN_PREFIX) && name.endsWith(RUN_SUFFIX) && parseApprovedTime(name) < approvedTime) {
+				// Readers still holding the old run keep their mapping, the file is only unlinked
+				deleteQuietly(file);
+			}
+		}
+	}
+
+	/**
+	 * @return the file key of a file, a rewritten run gets a new one as it is renamed into
+	 * place. Where file keys are not supported, the modification time and size. Null if the
+	 * file can't be read.
+	 */
+	private static Object getIdentity(File file) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+			Object key = attributes.fileKey();
+			return key != null ? key : attributes.lastModifiedTime() + "/" + attributes.size();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	private static long parseApprovedTime(String fileName) {
+		try {
+			return Long.parseLong(fileName.substring(RUN_PREFIX.length(), fileName.length() - RUN_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return Long.MIN_VALUE;
+		}
+	}
+
+	static void deleteQuietly(File file) {
+		if (!file.delete() && file.exists()) {
+			logger.debug("Could not delete " + file);
+		}
+	}
+
+	static int headerLength(int parameterCount, int stepCount) {
+		return FIXED_HEADER_LENGTH + parameterCount * NAME_LENGTH + stepCount * 8;
+	}
+
+	static long columnLength(int stepCount, int pointCount) {
+		return (long) stepCount * pointCount * 4;
+	}
+
+	/**
+	 * A committed, read-only forecast run. All accessors are allocation free.
+	 */
+	public static class GridRun {
+
+		private final long approvedTime;
+		private final long referenceTime;
+		private final int nx;
+		private final int ny;
+		private final int pointCount;
+		private final String[] parameters;
+		private final long[] validTimes;
+		private final ByteBuffer coordinates;
+		private final ByteBuffer[] columns;
+
+		private GridRun(long approvedTime, long referenceTime, int nx, int ny, String[] parameters,
+				long[] validTimes, ByteBuffer coordinates, ByteBuffer[] columns) {
+			this.approvedTime = approvedTime;
+			this.referenceTime = referenceTime;
+			this.nx = nx;
+			this.ny = ny;
+			this.pointCount = nx * ny;
+			this.parameters = parameters;
+			this.validTimes = validTimes;
+			this.coordinates = coordinates;
+			this.columns = columns;
+		}
+
+		static GridRun map(File file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				ByteBuffer fixed = ByteBuffer.allocate(FIXED_HEADER_LENGTH);
+				while (fixed.hasRemaining() && channel.read(fixed) >= 0) {
+				}
+				fixed.flip();
+				if (fixed.remaining() < FIXED_HEADER_LENGTH || fixed.getInt() != MAGIC || fixed.getInt() != VERSION) {
+					throw new IOException("Not a SMHI grid run file");
+				}
+				long approvedTime = fixed.getLong();
+				long referenceTime = fixed.getLong();
+				int nx = fixed.getInt();
+				int ny = fixed.getInt();
+				int parameterCount = fixed.getInt();
+				int stepCount = fixed.getInt();
+				int pointCount = nx * ny;
+
+				long columnLength = columnLength(stepCount, pointCount);
+				int headerLength = headerLength(parameterCount, stepCount);
+				long coordinatesLength = (long) pointCount * 8;
+				if (channel.size() != headerLength + coordinatesLength + parameterCount * columnLength) {
+					throw new IOException("Truncated SMHI grid run file");
+				}
+
+				ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, headerLength);
+				header.position(FIXED_HEADER_LENGTH);
+				String[] parameters = new String[parameterCount];
+				byte[] name = new byte[NAME_LENGTH];
+				for (int i = 0; i < parameterCount; i++) {
+					header.get(name);
+					int length = 0;
+					while (length < NAME_LENGTH && name[length] != 0) {
+						length++;
+					}
+					parameters[i] = new String(name, 0, length, ASCII);
+				}
+				long[] validTimes = new long[stepCount];
+				for (int i = 0; i < stepCount; i++) {
+					validTimes[i] = header.getLong();
+				}
+
+				MappedByteBuffer coordinates = channel.map(FileChannel.MapMode.READ_ONLY, headerLength, coordinatesLength);
+				ByteBuffer[] columns = new ByteBuffer[parameterCount];
+				long offset = headerLength + coordinatesLength;
+				for (int i = 0; i < parameterCount; i++) {
+					columns[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, columnLength);
+					offset += columnLength;
+				}
+				return new GridRun(approvedTime, referenceTime, nx, ny, parameters, validTimes, coordinates, columns);
+			} finally {
+				// Mappings stay valid after the channel has been closed
+				raf.close();
+			}
+		}
+
+		public long getApprovedTime() {
+			return approvedTime;
+		}
+
+		public long getReferenceTime() {
+			return referenceTime;
+		}
+
+		/**
+		 * Number of grid points along a grid row.
+		 */
+		public int getNx() {
+			return nx;
+		}
+
+		/**
+		 * Number of grid rows.
+		 */
+		public int getNy() {
+			return ny;
+		}
+
+		public int getPointCount() {
+			return pointCount;
+		}
+
+		public int getParameterCount() {
+			return parameters.length;
+		}
+
+		public String getParameter(int parameterIndex) {
+			return parameters[parameterIndex];
+		}
+
+		/**
+		 * @return the column index of the SMHI JSON parameter name, or -1 if it is not stored.
+		 */
+		public int getParameterIndex(String parameter) {
+			for (int i = 0; i < parameters.length; i++) {
+				if (parameters[i].equals(parameter)) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		public int getStepCount() {
+			return validTimes.length;
+		}
+
+		public long getValidTime(int step) {
+			return validTimes[step];
+		}
+
+		public float getLongitude(int point) {
+			return coordinates.getFloat(point * 4);
+		}
+
+		public float getLatitude(int point) {
+			return coordinates.getFloat((pointCount + point) * 4);
+		}
+
+		public float getValue(int parameterIndex, int step, int point) {
+			return columns[parameterIndex].getFloat((step * pointCount + point) * 4);
+		}
+	}
+
+	/**
+	 * Writes a new run into a temporary file. Not thread safe, a writer is meant to be
+	 * filled by a single loader.
+	 */
+	public static class GridRunWriter {
+
+		private final SmhiGridStore store;
+		private final File tmp;
+		private final File target;
+		private final long approvedTime;
+		private final int pointCount;
+		private final RandomAccessFile raf;
+		private final MappedByteBuffer coordinates;
+		private final MappedByteBuffer[] columns;
+		private boolean closed;
+
+		GridRunWriter(SmhiGridStore store, File tmp, File target, long approvedTime, long referenceTime,
+				int nx, int ny, String[] parameters, long[] validTimes) throws IOException {
+			this.store = store;
+			this.tmp = tmp;
+			this.target = target;
+			this.approvedTime = approvedTime;
+			this.pointCount = nx * ny;
+
+			long columnLength = columnLength(validTimes.length, pointCount);
+			if (columnLength > Integer.MAX_VALUE) {
+				throw new IOException("SMHI grid column too large: " + validTimes.length + " steps x " + pointCount + " points");
+			}
+			int headerLength = headerLength(parameters.length, validTimes.length);
+			long coordinatesLength = (long) pointCount * 8;
+
+			this.raf = new RandomAccessFile(tmp, "rw");
+			try {
+				raf.setLength(headerLength + coordinatesLength + parameters.length * columnLength);
+				FileChannel channel = raf.getChannel();
+
+				MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerLength);
+				header.putInt(MAGIC);
+				header.putInt(VERSION);
+				header.putLong(approvedTime);
+				header.putLong(referenceTime);
+				header.putInt(nx);
+				header.putInt(ny);
+				header.putInt(parameters.length);
+				header.putInt(validTimes.length);
+				for (String parameter : parameters) {
+					byte[] name = parameter.getBytes(ASCII);
+					if (name.length > NAME_LENGTH) {
+						throw new IOException("SMHI parameter name too long: " + parameter);
+					}
+					header.put(name);
+					for (int i = name.length; i < NAME_LENGTH; i++) {
+						header.put((byte) 0);
+					}
+				}
+				for (long validTime : validTimes) {
+					header.putLong(validTime);
+				}
+				header.force();
+
+				this.coordinates = channel.map(FileChannel.MapMode.READ_WRITE, headerLength, coordinatesLength);
+				this.columns = new MappedByteBuffer[parameters.length];
+				long offset = headerLength + coordinatesLength;
+				for (int i = 0; i < parameters.length; i++) {
+					columns[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, columnLength);
+					offset += columnLength;
+				}
+			} catch (IOException e) {
+				raf.close();
+				deleteQuietly(tmp);
+				throw e;
+			}
+		}
+
+		public void setCoordinate(int point, float longitude, float latitude) {
+			coordinates.putFloat(point * 4, longitude);
+			coordinates.putFloat((pointCount + point) * 4, latitude);
+		}
+
+		public void setValue(int parameterIndex, int step, int point, float value) {
+			columns[parameterIndex].putFloat((step * pointCount + point) * 4, value);
+		}
+
+		/**
+		 * Flushes the run to disk and atomically replaces the current run of the store.
+		 */
+		public void commit() throws IOException {
+			if (closed) {
+				throw new IOException("SMHI grid run writer already closed");
+			}
+			closed = true;
+			try {
+				coordinates.force();
+				for (MappedByteBuffer column : columns) {
+					column.force();
+				}
+			} finally {
+				raf.close();
+			}
+			store.commit(tmp, target, approvedTime);
+		}
+
+		/**
+		 * Discards the run being written.
+		 */
+		public void abort() {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				raf.close();
+			} catch (IOException e) {
+				logger.debug("Could not close " + tmp + ": " + e.toString());
+			}
+			deleteQuietly(tmp);
+		}
+	}
+}
@@ -0,0 +1,134 @@
+package org.openhab.binding.smhi.internal;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Runs a request and, if it hasn't completed after a delay, a second identical request. The
+ * first successful response is returned and the other request is cancelled. A hedge is only
+ * sent for the slowest requests, so it costs few extra requests while cutting off the long
+ * tail of response times.
+ *
+ * Cancelling interrupts the other request, which stops it while it waits, e.g. for the rate
+ * limiter. Blocking HTTP I/O doesn't react to interrupts though, so a request already sent runs
+ * until it gets a response or times out. Such requests are recorded as abandoned.
+ *
+ * The caller never waits longer than the request timeout for a response once the hedge is
+ * sent, even if the executor doesn't get to run the requests.
+ *
+ * @author agent
+ */
+public class SmhiHedgedRequest {
+
+	/**
+	 * @param request the original request
+	 * @param hedge the second request
+	 * @param hedgeDelay milliseconds to wait for the original request before sending the hedge
+	 * @param timeout milliseconds to wait for each further response once the hedge is sent
+	 * @param executor runs the requests, if it rejects them the original request is run by the caller
+	 * @param tracker records whether the hedge won
+	 * @return the first successful response
+	 * @throws Exception the failure of the last request to complete if both failed
+	 * @throws IOException if no request completed within the timeout
+	 */
+	public static <T> T execute(Callable<T> request, Callable<T> hedge, long hedgeDelay, long timeout,
+			Executor executor, SmhiLatencyTracker tracker) throws Exception {
+		BlockingQueue<FutureTask<T>> completed = new LinkedBlockingQueue<FutureTask<T>>();
+		Request<T> original = new Request<T>(request, completed);
+		try {
+			executor.execute(original);
+		} catch (RejectedExecutionException e) {
+			return request.call();
+		}
+
+		Request<T> second = null;
+		try {
+			FutureTask<T> first = completed.poll(hedgeDelay, TimeUnit.MILLISECONDS);
+			if (first != null) {
+				return getResult(first);
+			}
+
+			second = new Request<T>(hedge, completed);
+			try {
+				executor.execute(second);
+			} catch (RejectedExecutionException e) {
+				return getResult(original);
+			}
+
+			first = poll(completed, timeout);
+			try {
+				T result = getResult(first);
+				tracker.recordHedge(first == second);
+				return result;
+			} catch (Exception e) {
+				// Wait for the other request
+				FutureTask<T> last = poll(completed, timeout);
+				T result = getResult(last);
+				tracker.recordHedge(last == second);
+				return result;
+			}
+		} finally {
+			cancel(original, tracker);
+			if (second != null) {
+				cancel(second, tracker);
+			}
+		}
+	}
+
+	private static <T> FutureTask<T> poll(BlockingQueue<FutureTask<T>> completed, long timeout)
+			throws InterruptedException, IOException {
+		FutureTask<T> task = completed.poll(timeout, TimeUnit.MILLISECONDS);
+		if (task == null) {
+			throw new IOException("No response from SMHI API within " + timeout + " ms");
+		}
+		return task;
+	}
+
+	private static void cancel(Request<?> request, SmhiLatencyTracker tracker) {
+		if (request.cancel(true) && request.started) {
+			tracker.recordAbandoned();
+		}
+	}
+
+	private static <T> T getResult(FutureTask<T> task) throws Exception {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		}
+	}
+
+	private static class Request<T> extends FutureTask<T> {
+		private final BlockingQueue<FutureTask<T>> completed;
+
+		// Set once a thread runs the request
+		private volatile boolean started;
+
+		Request(Callable<T> callable, BlockingQueue<FutureTask<T>> completed) {
+			super(callable);
+			this.completed = completed;
+		}
+
+		@Override
+		public void run() {
+			started = true;
+			super.run();
+		}
+
+		@Override
+		protected void done() {
+			completed.offer(this);
+		}
+	}
+}
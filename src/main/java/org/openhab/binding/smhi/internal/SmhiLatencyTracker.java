@@ -0,0 +1,167 @@
+package org.openhab.binding.smhi.internal;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openhab.io.net.http.HttpUtil;
+
+
+/**
+ * Response times of one SMHI endpoint over its last requests. The request timeout adapts to
+ * the observed p99, so a slow node is given up on long before the configured maximum when
+ * responses normally arrive quickly, and the hedge delay is taken from a configurable
+ * percentile.
+ *
+ * Requests that time out are recorded with the timeout as their response time, which raises
+ * the percentiles again when SMHI gets slower as a whole.
+ *
+ * @author agent
+ */
+public class SmhiLatencyTracker {
+
+	// Number of response times kept
+	private static final int SAMPLE_COUNT = 200;
+
+	// Percentiles are only trusted after this many responses
+	private static final int MIN_SAMPLES = 20;
+
+	// Timeout as a multiple of the p99 response time
+	private static final int TIMEOUT_FACTOR = 2;
+
+	private final String name;
+	private final int minTimeout;
+	private final int maxTimeout;
+
+	private final long[] samples = new long[SAMPLE_COUNT];
+	private int next;
+	private int count;
+
+	private long requestCount;
+	private long timeoutCount;
+	private long hedgeCount;
+	private long hedgeWinCount;
+	private long abandonedCount;
+
+	/**
+	 * @param name endpoint name used in the statistics
+	 * @param minTimeout lower bound of the adaptive timeout in milliseconds
+	 * @param maxTimeout timeout in milliseconds until enough responses are recorded, and upper bound after
+	 */
+	public SmhiLatencyTracker(String name, int minTimeout, int maxTimeout) {
+		this.name = name;
+		this.minTimeout = minTimeout;
+		this.maxTimeout = maxTimeout;
+	}
+
+	/**
+	 * Sends a GET request with the adaptive timeout and records its response time.
+	 *
+	 * @return the response, or null if the request failed or timed out.
+	 */
+	public String executeUrl(String url) {
+		int timeout = getTimeout();
+		long start = System.nanoTime();
+		String response = HttpUtil.executeUrl("GET", url, null, null, "application/json", timeout);
+		long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		if (response != null) {
+			record(millis);
+		}
+		else if (millis >= timeout) {
+			recordTimeout(timeout);
+		}
+		return response;
+	}
+
+	public synchronized void record(long millis) {
+		samples[next] = millis;
+		next = (next + 1) % SAMPLE_COUNT;
+		count = Math.min(count + 1, SAMPLE_COUNT);
+		requestCount++;
+	}
+
+	/**
+	 * Records a request that got no response within the timeout.
+	 */
+	public synchronized void recordTimeout(long timeout) {
+		record(timeout);
+		timeoutCount++;
+	}
+
+	/**
+	 * Records a hedged request.
+	 *
+	 * @param won true if the hedge responded before the original request
+	 */
+	public synchronized void recordHedge(boolean won) {
+		hedgeCount++;
+		if (won) {
+			hedgeWinCount++;
+		}
+	}
+
+	/**
+	 * Records a request that lost to the other request of a hedge but could not be aborted,
+	 * so it still costs a request to SMHI and a fetch thread until it completes.
+	 */
+	public synchronized void recordAbandoned() {
+		abandonedCount++;
+	}
+
+	/**
+	 * @return the given percentile of the recorded response times in milliseconds, or -1 if too
+	 * few responses have been recorded.
+	 */
+	public synchronized long getPercentile(double percentile) {
+		if (count < MIN_SAMPLES) {
+			return -1;
+		}
+		long[] sorted = Arrays.copyOf(samples, count);
+		Arrays.sort(sorted);
+		int index = (int) Math.ceil(percentile / 100 * count) - 1;
+		return sorted[Math.max(0, Math.min(count - 1, index))];
+	}
+
+	/**
+	 * @return the timeout of the next request in milliseconds.
+	 */
+	public int getTimeout() {
+		long p99 = getPercentile(99);
+		if (p99 < 0) {
+			return maxTimeout;
+		}
+		return (int) Math.max(minTimeout, Math.min(maxTimeout, p99 * TIMEOUT_FACTOR));
+	}
+
+	/**
+	 * @return milliseconds to wait before a hedged request is sent, or -1 if too few
+	 * responses have been recorded.
+	 */
+	public long getHedgeDelay(double percentile) {
+		return getPercentile(percentile);
+	}
+
+	/**
+	 * Returns the statistics collected since the last call and resets the counters.
+	 */
+	public String drainStatistics() {
+		long p50 = getPercentile(50);
+		long p99 = getPercentile(99);
+		int timeout = getTimeout();
+		synchronized (this) {
+			String statistics = name + ": requests=" + requestCount
+					+ ", timeouts=" + timeoutCount
+					+ ", hedged=" + hedgeCount
+					+ ", hedge wins=" + hedgeWinCount
+					+ ", abandoned=" + abandonedCount
+					+ ", p50=" + p50 + " ms"
+					+ ", p99=" + p99 + " ms"
+					+ ", timeout=" + timeout + " ms";
+			requestCount = 0;
+			timeoutCount = 0;
+			hedgeCount = 0;
+			hedgeWinCount = 0;
+			abandonedCount = 0;
+			return statistics;
+		}
+	}
+}
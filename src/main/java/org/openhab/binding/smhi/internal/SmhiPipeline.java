@@ -0,0 +1,305 @@
+package org.openhab.binding.smhi.internal;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Asynchronous fetch &rarr; decode &rarr; publish pipeline. Jobs are fetched concurrently, then
+ * decoded and published by one thread each. The stages are connected by bounded queues: a full
+ * decode queue blocks the fetches, which in turn stops new fetches from being started, and
+ * {@link #submit(Object)} refuses jobs once the fetch queue is full. The submitting thread
+ * therefore never waits on the network.
+ *
+ * Fetches run on virtual threads when the JVM supports them (Java 21 and later), otherwise on
+ * a pool of daemon threads. In both cases at most the configured number of fetches run at once.
+ *
+ * @author agent
+ */
+public class SmhiPipeline<J, R, D> {
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(SmhiPipeline.class);
+
+	/**
+	 * The work done by each stage of the pipeline.
+	 */
+	public interface Stages<J, R, D> {
+
+		/**
+		 * Fetches the raw data of a job, called concurrently.
+		 */
+		R fetch(J job) throws Exception;
+
+		/**
+		 * Decodes the raw data of a job, called from the decode thread only.
+		 */
+		D decode(J job, R raw) throws Exception;
+
+		/**
+		 * Publishes a decoded job, called from the publish thread only.
+		 */
+		void publish(J job, D decoded) throws Exception;
+
+		/**
+		 * Called instead of the following stages when a stage failed.
+		 */
+		void failed(J job, Throwable cause);
+	}
+
+	private final String name;
+	private final Stages<J, R, D> stages;
+	private final int fetchConcurrency;
+
+	private final BlockingQueue<J> fetchQueue;
+	private final BlockingQueue<Stage<J, R>> decodeQueue;
+	private final BlockingQueue<Stage<J, D>> publishQueue;
+	private final Semaphore fetchPermits;
+
+	private ExecutorService fetchExecutor;
+	private boolean virtualThreads;
+	private Thread dispatchThread;
+	private Thread decodeThread;
+	private Thread publishThread;
+
+	public SmhiPipeline(String name, Stages<J, R, D> stages, int fetchConcurrency, int queueCapacity) {
+		this.name = name;
+		this.stages = stages;
+		this.fetchConcurrency = fetchConcurrency;
+		this.fetchQueue = new ArrayBlockingQueue<J>(queueCapacity);
+		this.decodeQueue = new ArrayBlockingQueue<Stage<J, R>>(queueCapacity);
+		this.publishQueue = new ArrayBlockingQueue<Stage<J, D>>(queueCapacity);
+		this.fetchPermits = new Semaphore(fetchConcurrency);
+	}
+
+	public synchronized void start() {
+		if (fetchExecutor != null) {
+			return;
+		}
+		fetchExecutor = newVirtualThreadExecutor();
+		virtualThreads = fetchExecutor != null;
+		if (fetchExecutor == null) {
+			fetchExecutor = Executors.newCachedThreadPool(new DaemonThreadFactory(name + " fetch"));
+		}
+		logger.debug(name + " pipeline started, fetching on " + (virtualThreads ? "virtual threads" : "platform threads")
+				+ ", at most " + fetchConcurrency + " at once");
+
+		dispatchThread = startThread(name + " dispatch", new Runnable() {
+			@Override
+			public void run() {
+				dispatch();
+			}
+		});
+		decodeThread = startThread(name + " decode", new Runnable() {
+			@Override
+			public void run() {
+				decode();
+			}
+		});
+		publishThread = startThread(name + " publish", new Runnable() {
+			@Override
+			public void run() {
+				publish();
+			}
+		});
+	}
+
+	/**
+	 * Stops all stages, jobs not yet published are dropped.
+	 */
+	public synchronized void stop() {
+		if (fetchExecutor == null) {
+			return;
+		}
+		dispatchThread.interrupt();
+		decodeThread.interrupt();
+		publishThread.interrupt();
+		fetchExecutor.shutdownNow();
+		fetchExecutor = null;
+		fetchQueue.clear();
+		decodeQueue.clear();
+		publishQueue.clear();
+		logger.debug(name + " pipeline stopped");
+	}
+
+	/**
+	 * Queues a job without blocking.
+	 *
+	 * @return false if the pipeline is stopped or its fetch queue is full.
+	 */
+	public boolean submit(J job) {
+		synchronized (this) {
+			if (fetchExecutor == null) {
+				return false;
+			}
+		}
+		return fetchQueue.offer(job);
+	}
+
+	/**
+	 * Runs a task in the background, outside of the pipeline stages.
+	 *
+	 * @return false if the pipeline is stopped.
+	 */
+	public synchronized boolean execute(Runnable task) {
+		if (fetchExecutor == null) {
+			return false;
+		}
+		try {
+			fetchExecutor.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+	}
+
+	public boolean isUsingVirtualThreads() {
+		return virtualThreads;
+	}
+
+	public int getFetchQueueSize() {
+		return fetchQueue.size();
+	}
+
+	public int getFetchesInFlight() {
+		return fetchConcurrency - fetchPermits.availablePermits();
+	}
+
+	public int getDecodeQueueSize() {
+		return decodeQueue.size();
+	}
+
+	public int getPublishQueueSize() {
+		return publishQueue.size();
+	}
+
+	private void dispatch() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				final J job = fetchQueue.take();
+				// Blocks while the maximum number of fetches are running or waiting on a full decode queue
+				fetchPermits.acquire();
+				ExecutorService executor;
+				synchronized (this) {
+					executor = fetchExecutor;
+				}
+				try {
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							fetch(job);
+						}
+					});
+				} catch (RuntimeException e) {
+					// Executor shut down or gone
+					fetchPermits.release();
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			// Pipeline stopped
+		}
+	}
+
+	private void fetch(J job) {
+		try {
+			R raw = stages.fetch(job);
+			decodeQueue.put(new Stage<J, R>(job, raw));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			stages.failed(job, e);
+		} catch (Throwable t) {
+			stages.failed(job, t);
+		} finally {
+			fetchPermits.release();
+		}
+	}
+
+	private void decode() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Stage<J, R> fetched = decodeQueue.take();
+				D decoded;
+				try {
+					decoded = stages.decode(fetched.job, fetched.data);
+				} catch (Throwable t) {
+					stages.failed(fetched.job, t);
+					continue;
+				}
+				publishQueue.put(new Stage<J, D>(fetched.job, decoded));
+			}
+		} catch (InterruptedException e) {
+			// Pipeline stopped
+		}
+	}
+
+	private void publish() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				Stage<J, D> decoded = publishQueue.take();
+				try {
+					stages.publish(decoded.job, decoded.data);
+				} catch (Throwable t) {
+					stages.failed(decoded.job, t);
+				}
+			}
+		} catch (InterruptedException e) {
+			// Pipeline stopped
+		}
+	}
+
+	private static Thread startThread(String name, Runnable runnable) {
+		Thread thread = new Thread(runnable, name);
+		thread.setDaemon(true);
+		thread.start();
+		return thread;
+	}
+
+	/**
+	 * @return a virtual thread per task executor, or null if the JVM has no virtual threads.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static class Stage<J, T> {
+		private final J job;
+		private final T data;
+
+		Stage(J job, T data) {
+			this.job = job;
+			this.data = data;
+		}
+	}
+
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, name + " " + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
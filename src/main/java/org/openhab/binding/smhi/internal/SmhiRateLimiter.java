@@ -0,0 +1,254 @@
+package org.openhab.binding.smhi.internal;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+/**
+ * Token bucket limiting the rate of requests sent to the SMHI servers. Tokens are added at a
+ * fixed rate up to a maximum burst, every request takes one token.
+ *
+ * Waiting requests are granted tokens fairly: requests for keys that have never been fetched
+ * go first, all other requests are served round robin over their keys, so a key with many
+ * queued requests (e.g. a grid download) can't starve the others.
+ *
+ * @author agent
+ */
+public class SmhiRateLimiter {
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition tokenGranted = lock.newCondition();
+
+	// Requests for keys that have never been fetched
+	private final ArrayDeque<Ticket> priorityQueue = new ArrayDeque<Ticket>();
+
+	// Waiting requests per key, and the keys in round robin order
+	private final Map<Object, ArrayDeque<Ticket>> queues = new HashMap<Object, ArrayDeque<Ticket>>();
+	private final ArrayDeque<Object> ring = new ArrayDeque<Object>();
+
+	private double permitsPerSecond;
+	private int burst;
+	private double tokens;
+	private long lastRefill;
+
+	private int queueDepth;
+	private int maxQueueDepth;
+	private long grantedCount;
+	private long timedOutCount;
+	private long totalWaitNanos;
+	private long maxWaitNanos;
+
+	/**
+	 * @param permitsPerSecond the sustained request rate, 0 disables the limiter
+	 * @param burst the number of requests that may be sent back to back
+	 */
+	public SmhiRateLimiter(double permitsPerSecond, int burst) {
+		this.lastRefill = System.nanoTime();
+		setRate(permitsPerSecond, burst);
+		this.tokens = this.burst;
+	}
+
+	public void setRate(double permitsPerSecond, int burst) {
+		lock.lock();
+		try {
+			refill(System.nanoTime());
+			this.permitsPerSecond = Math.max(0, permitsPerSecond);
+			this.burst = Math.max(1, burst);
+			this.tokens = Math.min(tokens, this.burst);
+			// Waiters recalculate their wait time with the new rate
+			tokenGranted.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until the request may be sent.
+	 *
+	 * @param key the point (or other resource) the request is for
+	 * @param priority true if the key has never been fetched
+	 */
+	public void acquire(Object key, boolean priority) throws InterruptedException {
+		acquire(key, priority, 0);
+	}
+
+	/**
+	 * Blocks until the request may be sent, or until a deadline has passed.
+	 *
+	 * @param key the point (or other resource) the request is for
+	 * @param priority true if the key has never been fetched
+	 * @param deadline time in milliseconds after which the request gives up waiting, 0 for no limit
+	 * @return false if the deadline passed before the request was granted a token.
+	 */
+	public boolean acquire(Object key, boolean priority, long deadline) throws InterruptedException {
+		long start = System.nanoTime();
+		long deadlineNanos = deadline != 0 ? start + TimeUnit.MILLISECONDS.toNanos(deadline - System.currentTimeMillis()) : 0;
+		Ticket ticket = new Ticket();
+		lock.lock();
+		try {
+			if (permitsPerSecond <= 0) {
+				grantedCount++;
+				return true;
+			}
+			enqueue(key, priority, ticket);
+			try {
+				while (!ticket.granted) {
+					long waitNanos = dispatch();
+					if (ticket.granted) {
+						break;
+					}
+					if (permitsPerSecond <= 0) {
+						// Limiter was disabled while waiting
+						dequeue(key, ticket);
+						break;
+					}
+					if (deadline != 0) {
+						long remainingNanos = deadlineNanos - System.nanoTime();
+						if (remainingNanos <= 0) {
+							dequeue(key, ticket);
+							timedOutCount++;
+							return false;
+						}
+						waitNanos = Math.min(waitNanos, remainingNanos);
+					}
+					tokenGranted.awaitNanos(waitNanos);
+				}
+			} catch (InterruptedException e) {
+				if (!ticket.granted) {
+					dequeue(key, ticket);
+				}
+				throw e;
+			}
+			long waitNanos = System.nanoTime() - start;
+			grantedCount++;
+			totalWaitNanos += waitNanos;
+			maxWaitNanos = Math.max(maxWaitNanos, waitNanos);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Hands out the available tokens to the waiting requests.
+	 *
+	 * @return nanoseconds until the next token is available.
+	 */
+	private long dispatch() {
+		refill(System.nanoTime());
+		boolean granted = false;
+		while (tokens >= 1 && queueDepth > 0) {
+			Ticket next = next();
+			next.granted = true;
+			tokens -= 1;
+			granted = true;
+		}
+		if (granted) {
+			tokenGranted.signalAll();
+		}
+		if (tokens >= 1 || permitsPerSecond <= 0) {
+			return TimeUnit.MILLISECONDS.toNanos(100);
+		}
+		return Math.max(1, (long) ((1 - tokens) / permitsPerSecond * TimeUnit.SECONDS.toNanos(1)));
+	}
+
+	private void refill(long now) {
+		if (permitsPerSecond > 0) {
+			tokens = Math.min(burst, tokens + (now - lastRefill) * permitsPerSecond / TimeUnit.SECONDS.toNanos(1));
+		}
+		lastRefill = now;
+	}
+
+	private void enqueue(Object key, boolean priority, Ticket ticket) {
+		if (priority) {
+			priorityQueue.add(ticket);
+		}
+		else {
+			ArrayDeque<Ticket> queue = queues.get(key);
+			if (queue == null) {
+				queue = new ArrayDeque<Ticket>();
+				queues.put(key, queue);
+				ring.add(key);
+			}
+			queue.add(ticket);
+		}
+		queueDepth++;
+		maxQueueDepth = Math.max(maxQueueDepth, queueDepth);
+	}
+
+	private void dequeue(Object key, Ticket ticket) {
+		if (priorityQueue.remove(ticket)) {
+			queueDepth--;
+			return;
+		}
+		ArrayDeque<Ticket> queue = queues.get(key);
+		if (queue != null && queue.remove(ticket)) {
+			queueDepth--;
+			if (queue.isEmpty()) {
+				queues.remove(key);
+				ring.remove(key);
+			}
+		}
+	}
+
+	private Ticket next() {
+		queueDepth--;
+		Ticket ticket = priorityQueue.poll();
+		if (ticket != null) {
+			return ticket;
+		}
+		Object key = ring.poll();
+		ArrayDeque<Ticket> queue = queues.get(key);
+		ticket = queue.poll();
+		if (queue.isEmpty()) {
+			queues.remove(key);
+		}
+		else {
+			ring.add(key);
+		}
+		return ticket;
+	}
+
+	/**
+	 * @return the number of requests currently waiting for a token.
+	 */
+	public int getQueueDepth() {
+		lock.lock();
+		try {
+			return queueDepth;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the statistics collected since the last call and resets them.
+	 */
+	public String drainStatistics() {
+		lock.lock();
+		try {
+			String statistics = "granted=" + grantedCount
+					+ ", timed out=" + timedOutCount
+					+ ", queue depth=" + queueDepth
+					+ ", max queue depth=" + maxQueueDepth
+					+ ", mean wait=" + (grantedCount > 0 ? TimeUnit.NANOSECONDS.toMillis(totalWaitNanos / grantedCount) : 0) + " ms"
+					+ ", max wait=" + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos) + " ms";
+			grantedCount = 0;
+			timedOutCount = 0;
+			totalWaitNanos = 0;
+			maxWaitNanos = 0;
+			maxQueueDepth = queueDepth;
+			return statistics;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static class Ticket {
+		private boolean granted;
+	}
+}
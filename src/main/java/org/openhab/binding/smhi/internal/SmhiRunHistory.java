@@ -0,0 +1,229 @@
+package org.openhab.binding.smhi.internal;
+
+import java.util.List;
+
+import org.openhab.binding.smhi.internal.SmhiBinding.Parameter;
+import org.openhab.binding.smhi.internal.SmhiBinding.SmhiDataListV2;
+import org.openhab.binding.smhi.internal.SmhiBinding.WeatherDataV2;
+
+
+/**
+ * Ring buffer holding the last forecast runs of one point as primitive parameter columns.
+ * All arrays are allocated up front, so the memory used per point is fixed by the number of
+ * runs and the number of time steps kept per run, which follows the forecast horizon.
+ *
+ * The history answers how the forecast for a time changed between the two latest runs
+ * (revision) and how a parameter changed over the last hours (tendency), without
+ * further queries.
+ *
+ * @author agent
+ */
+public class SmhiRunHistory {
+
+	// SMHI JSON parameters kept per run, in column order
+	static final String[] PARAMETERS = {
+		SmhiConstants.PARAMETER_TEMPERATURE_JSON,
+		SmhiConstants.PARAMETER_THUNDERSTORM_JSON,
+		SmhiConstants.PARAMETER_PRESSURE_JSON,
+		SmhiConstants.PARAMETER_VISIBILITY_JSON,
+		SmhiConstants.PARAMETER_WIND_DIRECTION_JSON,
+		SmhiConstants.PARAMETER_WIND_VELOCITY_JSON,
+		SmhiConstants.PARAMETER_WIND_GUST_JSON,
+		SmhiConstants.PARAMETER_HUMIDITY_JSON,
+		SmhiConstants.PARAMETER_TOTAL_CLOUD_COVER_JSON,
+		SmhiConstants.PARAMETER_HIGH_CLOUD_COVER_JSON,
+		SmhiConstants.PARAMETER_MEDIUM_CLOUD_COVER_JSON,
+		SmhiConstants.PARAMETER_LOW_CLOUDS_JSON,
+		SmhiConstants.PARAMETER_MAX_PRECIPITATION_JSON,
+		SmhiConstants.PARAMETER_MIN_PRECIPITATION_JSON,
+		SmhiConstants.PARAMETER_FROZEN_PRECIPITATION_JSON,
+		SmhiConstants.PARAMETER_PRECIPITATION_CATEGORY_JSON,
+		SmhiConstants.PARAMETER_MEAN_PRECIPITATION_JSON,
+		SmhiConstants.PARAMETER_MEDIAN_PRECIPITATION_JSON
+	};
+
+	// Maximum number of time steps kept per run, pmp2g runs have about 70
+	static final int MAX_STEPS = 80;
+
+	// Revisions compare two runs
+	static final int MIN_CAPACITY = 2;
+
+	// Heap layout of a 64 bit JVM with compressed references
+	private static final long OBJECT_SIZE = 40;
+	private static final long ARRAY_HEADER = 16;
+
+	private final int capacity;
+
+	// Time steps kept per run
+	private final int steps;
+
+	// [run]
+	private final long[] approvedTimes;
+	private final int[] stepCounts;
+
+	// [run][step]
+	private final long[] validTimes;
+
+	// [run][parameter][step]
+	private final float[] values;
+
+	// Slot of the latest run, and number of runs held
+	private int head = -1;
+	private int count;
+
+	/**
+	 * @param capacity number of runs to keep, at least {@link #MIN_CAPACITY}
+	 * @param steps number of time steps to keep per run, at most {@link #MAX_STEPS}
+	 */
+	public SmhiRunHistory(int capacity, int steps) {
+		this.capacity = Math.max(MIN_CAPACITY, capacity);
+		this.steps = Math.max(1, Math.min(MAX_STEPS, steps));
+		this.approvedTimes = new long[this.capacity];
+		this.stepCounts = new int[this.capacity];
+		this.validTimes = new long[this.capacity * this.steps];
+		this.values = new float[this.capacity * PARAMETERS.length * this.steps];
+	}
+
+	/**
+	 * @return the column of an SMHI JSON parameter, or -1 if it is not kept.
+	 */
+	public static int indexOf(String jsonParameter) {
+		if (jsonParameter == null) {
+			return -1;
+		}
+		for (int i = 0; i < PARAMETERS.length; i++) {
+			if (PARAMETERS[i].equals(jsonParameter)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getSteps() {
+		return steps;
+	}
+
+	public int getRunCount() {
+		return count;
+	}
+
+	/**
+	 * @return the heap size of the history, object and array headers included. The arrays are
+	 * allocated up front, so the size is fixed by the capacity and the steps per run.
+	 */
+	public long getSizeInBytes() {
+		return OBJECT_SIZE
+				+ ARRAY_HEADER + 8L * approvedTimes.length
+				+ ARRAY_HEADER + 4L * stepCounts.length
+				+ ARRAY_HEADER + 8L * validTimes.length
+				+ ARRAY_HEADER + 4L * values.length;
+	}
+
+	/**
+	 * Adds a run, overwriting the oldest one when the buffer is full. A run that is not
+	 * newer than the latest run is ignored.
+	 *
+	 * @return true if the run was added.
+	 */
+	public boolean add(SmhiDataListV2 dataList) {
+		if (dataList.getApprovedTime() == null || dataList.getTimeSeries() == null) {
+			return false;
+		}
+		long approvedTime = dataList.getApprovedTime().getTime();
+		if (count > 0 && approvedTime <= approvedTimes[head]) {
+			return false;
+		}
+
+		int slot = (head + 1) % capacity;
+		List<WeatherDataV2> timeSeries = dataList.getTimeSeries();
+		int runSteps = Math.min(timeSeries.size(), steps);
+		for (int step = 0; step < runSteps; step++) {
+			WeatherDataV2 weatherData = timeSeries.get(step);
+			validTimes[slot * steps + step] = weatherData.getValidTime().getTime();
+			for (int parameter = 0; parameter < PARAMETERS.length; parameter++) {
+				values[offset(slot, parameter) + step] = Float.NaN;
+			}
+			if (weatherData.getParameters() == null) {
+				continue;
+			}
+			for (Parameter parameter : weatherData.getParameters()) {
+				int index = indexOf(parameter.getName());
+				if (index >= 0 && parameter.getValues() != null && !parameter.getValues().isEmpty()) {
+					values[offset(slot, index) + step] = parameter.getValues().get(0).floatValue();
+				}
+			}
+		}
+		approvedTimes[slot] = approvedTime;
+		stepCounts[slot] = runSteps;
+		head = slot;
+		count = Math.min(count + 1, capacity);
+		return true;
+	}
+
+	/**
+	 * Value of a parameter at a time in a run, linearly interpolated between time steps.
+	 *
+	 * @param age 0 for the latest run, 1 for the run before and so on
+	 * @return the value, or NaN if the run doesn't cover the time.
+	 */
+	public double getValue(int age, int parameter, long time) {
+		if (age >= count || parameter < 0) {
+			return Double.NaN;
+		}
+		int slot = (head - age + capacity) % capacity;
+		int runSteps = stepCounts[slot];
+		int base = slot * steps;
+		if (runSteps == 0 || time < validTimes[base] || time > validTimes[base + runSteps - 1]) {
+			return Double.NaN;
+		}
+		int step = 0;
+		while (step < runSteps - 1 && validTimes[base + step + 1] <= time) {
+			step++;
+		}
+		double value = values[offset(slot, parameter) + step];
+		if (step == runSteps - 1 || validTimes[base + step] == time) {
+			return value;
+		}
+		long t0 = validTimes[base + step];
+		long t1 = validTimes[base + step + 1];
+		double next = values[offset(slot, parameter) + step + 1];
+		return value + (next - value) * (time - t0) / (t1 - t0);
+	}
+
+	/**
+	 * How much the forecast for a time changed between the previous and the latest run.
+	 *
+	 * @return latest minus previous, or NaN if the two latest runs don't both cover the time.
+	 */
+	public double getRevision(int parameter, long time) {
+		return getValue(0, parameter, time) - getValue(1, parameter, time);
+	}
+
+	/**
+	 * Change of a parameter over a period ending at a time, each end taken from the newest
+	 * run covering it.
+	 *
+	 * @return value at time minus value at time - period, or NaN if no run covers either end.
+	 */
+	public double getTendency(int parameter, long time, long period) {
+		return getNewestValue(parameter, time) - getNewestValue(parameter, time - period);
+	}
+
+	private double getNewestValue(int parameter, long time) {
+		for (int age = 0; age < count; age++) {
+			double value = getValue(age, parameter, time);
+			if (!Double.isNaN(value)) {
+				return value;
+			}
+		}
+		return Double.NaN;
+	}
+
+	private int offset(int slot, int parameter) {
+		return (slot * PARAMETERS.length + parameter) * steps;
+	}
+}
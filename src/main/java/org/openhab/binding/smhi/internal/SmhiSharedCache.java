@@ -0,0 +1,261 @@
+package org.openhab.binding.smhi.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Forecast cache in a directory shared by several openHAB instances on the same host.
+ * Entries are stored per key and version (the SMHI approvedTime), so a forecast is only
+ * downloaded once per run no matter how many instances need it.
+ *
+ * A file lock per key serializes loading across processes: the first instance to need an
+ * entry downloads it and writes it atomically, the others wait for the lock and read the
+ * stored entry.
+ *
+ * Entries of points that no instance is bound to any more are no longer rewritten with new
+ * runs. They are deleted with their lock files once they are older than a day.
+ *
+ * @author agent
+ */
+public class SmhiSharedCache {
+
+	private static final Logger logger =
+			LoggerFactory.getLogger(SmhiSharedCache.class);
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final String DATA_SUFFIX = ".json";
+	private static final String LOCK_SUFFIX = ".lock";
+	private static final String TMP_SUFFIX = ".tmp";
+
+	// Entries not rewritten for this long are deleted, checked at most once per interval
+	private static final long STALE_AGE = TimeUnit.DAYS.toMillis(1);
+	private static final long CLEANUP_INTERVAL = TimeUnit.HOURS.toMillis(1);
+
+	private final File directory;
+
+	// Time of the last check for stale entries
+	private volatile long lastCleanup;
+
+	// File locks are held per process, threads of this process are serialized per key first
+	// with locks, which unlike monitors don't pin the carrier of a virtual thread waiting for the loader
+	private final ConcurrentMap<String, ReentrantLock> keyLocks = new ConcurrentHashMap<String, ReentrantLock>();
+
+	public SmhiSharedCache(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create cache directory '" + directory + "'");
+		}
+		this.directory = directory;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Returns the entry for the key and version, loading and storing it if no instance
+	 * has stored it yet.
+	 *
+	 * @param key file system safe name of the entry
+	 * @param version version of the entry, older versions of the key are removed
+	 * @param loader loads the entry, a null result is returned but not stored
+	 */
+	public String get(final String key, final long version, final Callable<String> loader) throws Exception {
+		final File data = new File(directory, key + "-" + version + DATA_SUFFIX);
+		String cached = read(data);
+		if (cached != null) {
+			return cached;
+		}
+		return withLock(key, new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				// Another instance may have stored the entry while we waited for the lock
+				String cached = read(data);
+				if (cached != null) {
+					return cached;
+				}
+				String loaded = loader.call();
+				if (loaded != null) {
+					write(data, loaded.getBytes(UTF8));
+					deleteOtherVersions(key, data);
+				}
+				return loaded;
+			}
+		});
+	}
+
+	/**
+	 * Runs the task while holding both the in-process and the cross-process lock of the key.
+	 */
+	public <T> T withLock(String key, Callable<T> task) throws Exception {
+		ReentrantLock keyLock = getKeyLock(key);
+		keyLock.lockInterruptibly();
+		try {
+			RandomAccessFile lockFile = new RandomAccessFile(new File(directory, key + LOCK_SUFFIX), "rw");
+			try {
+				FileLock lock = lockFile.getChannel().lock();
+				try {
+					return task.call();
+				} finally {
+					lock.release();
+				}
+			} finally {
+				lockFile.close();
+			}
+		} finally {
+			keyLock.unlock();
+		}
+	}
+
+	private static String read(File data) throws IOException {
+		if (!data.isFile()) {
+			return null;
+		}
+		RandomAccessFile raf;
+		try {
+			raf = new RandomAccessFile(data, "r");
+		} catch (IOException e) {
+			// Removed by another instance in the meantime
+			return null;
+		}
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return UTF8.decode(buffer).toString();
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void write(File data, byte[] content) throws IOException {
+		File tmp = File.createTempFile(data.getName() + "-", TMP_SUFFIX, directory);
+		try {
+			RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+			try {
+				FileChannel channel = raf.getChannel();
+				ByteBuffer buffer = ByteBuffer.wrap(content);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(true);
+			} finally {
+				raf.close();
+			}
+			Files.move(tmp.toPath(), data.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			if (tmp.exists()) {
+				SmhiGridStore.deleteQuietly(tmp);
+			}
+		}
+		logger.debug("Stored " + data + " in shared SMHI cache");
+	}
+
+	/**
+	 * Deletes the entries and temporary files older than {@link #STALE_AGE}, and the lock files of
+	 * keys that have no entry left. Returns right away if the last check is less than
+	 * {@link #CLEANUP_INTERVAL} ago.
+	 */
+	public void deleteStaleEntries() {
+		long now = System.currentTimeMillis();
+		if (now - lastCleanup < CLEANUP_INTERVAL) {
+			return;
+		}
+		lastCleanup = now;
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		Set<String> keys = new HashSet<String>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(DATA_SUFFIX) || name.endsWith(TMP_SUFFIX)) {
+				if (now - file.lastModified() > STALE_AGE) {
+					SmhiGridStore.deleteQuietly(file);
+				}
+				else if (name.endsWith(DATA_SUFFIX) && name.lastIndexOf('-') > 0) {
+					keys.add(name.substring(0, name.lastIndexOf('-')));
+				}
+			}
+		}
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(LOCK_SUFFIX)) {
+				String key = name.substring(0, name.length() - LOCK_SUFFIX.length());
+				if (!keys.contains(key)) {
+					deleteUnlocked(key, file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Deletes the lock file of a key unless another thread or instance holds its lock.
+	 */
+	private void deleteUnlocked(String key, File lockFile) {
+		ReentrantLock keyLock = getKeyLock(key);
+		if (!keyLock.tryLock()) {
+			return;
+		}
+		try {
+			RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+			try {
+				FileLock lock = raf.getChannel().tryLock();
+				if (lock != null) {
+					SmhiGridStore.deleteQuietly(lockFile);
+					lock.release();
+				}
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			logger.debug("Could not delete " + lockFile + ": " + e.toString());
+		} finally {
+			keyLock.unlock();
+		}
+	}
+
+	private ReentrantLock getKeyLock(String key) {
+		ReentrantLock keyLock = keyLocks.get(key);
+		if (keyLock == null) {
+			ReentrantLock newLock = new ReentrantLock();
+			keyLock = keyLocks.putIfAbsent(key, newLock);
+			if (keyLock == null) {
+				keyLock = newLock;
+			}
+		}
+		return keyLock;
+	}
+
+	private void deleteOtherVersions(String key, File current) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+		String prefix = key + "-";
+		for (File file : files) {
+			String name = file.getName();
+			if (name.startsWith(prefix) && name.endsWith(DATA_SUFFIX) && !file.equals(current)) {
+				SmhiGridStore.deleteQuietly(file);
+			}
+		}
+	}
+}
@@ -0,0 +1,78 @@
+package org.openhab.binding.smhi.internal;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Coalesces concurrent loads of the same key. The first caller for a key runs the loader,
+ * callers arriving while it is in flight wait for and share its result instead of starting
+ * a load of their own. A failure of the loader is propagated to every waiting caller.
+ *
+ * A waiting caller that is interrupted stops waiting without affecting the load. A load can
+ * be cancelled with {@link #cancel(Object)}, all of its callers then get a
+ * {@link CancellationException}.
+ *
+ * @author agent
+ */
+public class SmhiSingleFlight<K, V> {
+
+	private final ConcurrentMap<K, FutureTask<V>> flights = new ConcurrentHashMap<K, FutureTask<V>>();
+
+	// Number of callers that attached to a load already in flight
+	private final AtomicLong joinCount = new AtomicLong();
+
+	/**
+	 * Runs the loader for the key, or waits for the load already in flight for it.
+	 *
+	 * @throws ExecutionException if the loader failed, the cause is the loader's exception
+	 * @throws InterruptedException if the calling thread was interrupted while waiting
+	 * @throws CancellationException if the load was cancelled
+	 */
+	public V execute(K key, Callable<V> loader) throws ExecutionException, InterruptedException {
+		FutureTask<V> task = new FutureTask<V>(loader);
+		FutureTask<V> inFlight = flights.putIfAbsent(key, task);
+		if (inFlight != null) {
+			joinCount.incrementAndGet();
+			return inFlight.get();
+		}
+		try {
+			task.run();
+		} finally {
+			flights.remove(key, task);
+		}
+		return task.get();
+	}
+
+	/**
+	 * Cancels the load in flight for the key, if any.
+	 */
+	public void cancel(K key) {
+		FutureTask<V> task = flights.remove(key);
+		if (task != null) {
+			task.cancel(true);
+		}
+	}
+
+	/**
+	 * Cancels all loads in flight.
+	 */
+	public void cancelAll() {
+		for (K key : flights.keySet()) {
+			cancel(key);
+		}
+	}
+
+	/**
+	 * Returns the statistics collected since the last call and resets them.
+	 */
+	public String drainStatistics() {
+		return "in flight=" + flights.size()
+				+ ", joined=" + joinCount.getAndSet(0);
+	}
+}